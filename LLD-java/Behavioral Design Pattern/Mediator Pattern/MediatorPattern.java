@@ -197,34 +197,799 @@ As the number of users increases, the system becomes harder to manage and mainta
 
 // with mediator pattern
 
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 interface DocumentSessionMediator {
     void broadcastChange(String change, User sender);
+    void broadcastEdit(SequenceOp op, User sender);
     void join(User user);
 }
 
+// Fixed-size ring of preallocated change slots, one per document (Disruptor style).
+// Publishers are serialized on a short lock so the ring has a single writer at a time;
+// every reader owns a sequence cursor and the writer never laps the slowest one.
+// Idle readers park until the next publish unparks them, so a quiet document costs no CPU.
+// The lock is a ReentrantLock rather than a monitor so that a publisher parked on a full ring
+// does not pin its carrier thread when editors and receivers run on virtual threads.
+class ChangeRingBuffer {
+    static final class Slot {
+        String change;
+        EncodedChange encoded;
+        SequenceOp op;
+        User sender;
+        int mergedChanges;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong published = new AtomicLong(-1);
+    private final List<AtomicLong> readers = new CopyOnWriteArrayList<>();
+    private final Set<Thread> sleepingReaders = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private long cachedMinReader = -1; // guarded by writeLock
+    private ChangeLog log;             // guarded by writeLock, null = no catch-up for late joiners
+    private ChangeBufferPool encoding; // guarded by writeLock, null = text changes travel as Strings
+    private int byteReaders;           // guarded by writeLock; readers that forward encoded bytes
+    private long appendedChars;        // guarded by writeLock; where the next text change lands
+
+    ChangeRingBuffer(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring capacity must be a power of two: " + capacity);
+        }
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        mask = capacity - 1;
+    }
+
+    // O(1) and allocation-free: reuse the slot, then make it visible with one volatile write.
+    // Readers are only rescanned when the writer is about to wrap past the cached minimum.
+    long publish(String change, User sender) {
+        return publish(change, sender, 1);
+    }
+
+    long publish(String change, User sender, int mergedChanges) {
+        return publish(change, null, sender, mergedChanges);
+    }
+
+    long publishEdit(SequenceOp op, User sender) {
+        return publish(null, op, sender, 1);
+    }
+
+    private long publish(String change, SequenceOp op, User sender, int mergedChanges) {
+        long seq = append(change, op, sender, mergedChanges);
+        if (!sleepingReaders.isEmpty()) {
+            for (Thread reader : sleepingReaders) {
+                LockSupport.unpark(reader);
+            }
+        }
+        return seq;
+    }
+
+    private long append(String change, SequenceOp op, User sender, int mergedChanges) {
+        writeLock.lock();
+        try {
+            long seq = published.get() + 1;
+            long wrapPoint = seq - slots.length;
+            if (wrapPoint > cachedMinReader) {
+                long min;
+                while (wrapPoint > (min = minReaderSequence(seq - 1))) {
+                    LockSupport.parkNanos(1_000); // slowest reader is a full ring behind
+                }
+                cachedMinReader = min;
+            }
+            Slot slot = slots[(int) seq & mask];
+            // encoded only when some reader forwards bytes, once for all of them; each one releases
+            // it as it passes the slot. The String stays in the slot too, so readers that want
+            // text never touch the buffer.
+            slot.encoded = change != null && encoding != null && byteReaders > 0
+                    ? encoding.encodeAppend(appendedChars, change, byteReaders)
+                    : null;
+            slot.change = change;
+            if (change != null) {
+                appendedChars += change.length();
+            }
+            slot.op = op;
+            slot.sender = sender;
+            slot.mergedChanges = mergedChanges;
+            published.set(seq);
+            if (log != null && change != null && log.append(seq, change, sender, mergedChanges)) {
+                log.truncate(minReaderSequence(seq));
+            }
+            return seq;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // joinedAt is the last sequence published before the reader was registered; catchUp covers
+    // the text changes up to it (null without a change log)
+    record Registration(long joinedAt, ChangeLog.CatchUp catchUp) {
+    }
+
+    // Registers `cursor` after everything already published, or, given `replayFrom`, at that
+    // reader's position: the slots after a registered reader cannot have been overwritten, so a
+    // joiner can replay them. Everything is taken under the write lock, so the catch-up and the
+    // ring meet exactly at joinedAt. A reader that forwards bytes holds a reference to every
+    // encoded change published after joinedAt until it passes that slot or is removed.
+    Registration addReader(AtomicLong cursor, AtomicLong replayFrom, boolean forwardsBytes) {
+        writeLock.lock();
+        try {
+            long joinedAt = published.get();
+            boolean replay = replayFrom != null && readers.contains(replayFrom);
+            cursor.set(replay ? Math.min(joinedAt, replayFrom.get()) : joinedAt);
+            readers.add(cursor);
+            if (forwardsBytes) {
+                byteReaders++;
+            }
+            return new Registration(joinedAt, log == null ? null : log.catchUp());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void attachLog(ChangeLog changeLog) {
+        writeLock.lock();
+        try {
+            log = changeLog;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void attachEncoding(ChangeBufferPool pool) {
+        writeLock.lock();
+        try {
+            encoding = pool;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Called by the reader's own thread once it has stopped reading, so nothing else can be
+    // releasing the same slots: the encoded changes it never reached are released here and go
+    // back to the pool once every other reader has passed them too
+    void removeReader(AtomicLong cursor, boolean forwardsBytes, long joinedAt) {
+        writeLock.lock();
+        try {
+            if (!readers.remove(cursor) || !forwardsBytes) {
+                return;
+            }
+            byteReaders--;
+            // still registered until now, so none of these slots has been overwritten
+            for (long seq = Math.max(cursor.get(), joinedAt) + 1; seq <= published.get(); seq++) {
+                EncodedChange encoded = slot(seq).encoded;
+                if (encoded != null) {
+                    encoded.release();
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    long publishedSequence() {
+        return published.get();
+    }
+
+    // Parks the calling reader until `sequence` is published, it is unparked, or the deadline
+    // passes (0 = no deadline). Registering before the re-check pairs with publish() reading
+    // the set after its volatile store, so a publish can never slip between the two unseen.
+    void awaitPublished(long sequence, long deadlineNanos) {
+        Thread reader = Thread.currentThread();
+        sleepingReaders.add(reader);
+        try {
+            if (published.get() < sequence) {
+                if (deadlineNanos == 0) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, deadlineNanos - System.nanoTime());
+                }
+            }
+        } finally {
+            sleepingReaders.remove(reader);
+        }
+    }
+
+    Slot slot(long seq) {
+        return slots[(int) seq & mask];
+    }
+
+    long minReaderSequence(long fallback) {
+        long min = fallback;
+        for (AtomicLong reader : readers) {
+            min = Math.min(min, reader.get());
+        }
+        return min;
+    }
+}
+
+// ===================== Snapshot + delta log =====================
+// Late joiners get the latest compacted snapshot plus only the deltas after it, so catch-up
+// costs at most one snapshot interval of deltas however long the session has run. Content
+// follows the same append-style model as ChangeCoalescer: the changes concatenated in order.
+// Deltas are dropped once they are below both the latest snapshot and the slowest reader.
+record DocumentSnapshot(long sequence, String content) {
+}
+
+class ChangeLog {
+    record LoggedChange(long sequence, String change, User sender, int mergedChanges) {
+    }
+
+    record CatchUp(DocumentSnapshot snapshot, List<LoggedChange> deltas) {
+    }
+
+    private final int snapshotInterval;
+    // guarded by the ring's write lock
+    private final ArrayDeque<LoggedChange> deltas = new ArrayDeque<>();
+    // every logged change in order; the snapshot is the prefix up to snapshotLength, so
+    // compacting only moves a marker instead of copying the document
+    private final StringBuilder content = new StringBuilder();
+    private long snapshotSequence;
+    private int snapshotLength;
+    private DocumentSnapshot snapshot;   // materialized on first use after each compaction
+
+    ChangeLog(int snapshotInterval, long startSequence) {
+        if (snapshotInterval <= 0) {
+            throw new IllegalArgumentException("snapshotInterval must be positive: " + snapshotInterval);
+        }
+        this.snapshotInterval = snapshotInterval;
+        this.snapshotSequence = startSequence;
+    }
+
+    // O(change): returns true when the append produced a new snapshot
+    boolean append(long sequence, String change, User sender, int mergedChanges) {
+        deltas.addLast(new LoggedChange(sequence, change, sender, mergedChanges));
+        content.append(change);
+        if (sequence - snapshotSequence < snapshotInterval) {
+            return false;
+        }
+        snapshotSequence = sequence;
+        snapshotLength = content.length();
+        snapshot = null;
+        return true;
+    }
+
+    void truncate(long oldestCursor) {
+        long keepAfter = Math.min(snapshotSequence, oldestCursor);
+        while (!deltas.isEmpty() && deltas.peekFirst().sequence() <= keepAfter) {
+            deltas.pollFirst();
+        }
+    }
+
+    // null when nothing has been logged yet
+    CatchUp catchUp() {
+        if (content.isEmpty()) {
+            return null;
+        }
+        List<LoggedChange> after = new ArrayList<>();
+        for (LoggedChange delta : deltas) {
+            if (delta.sequence() > snapshotSequence) {
+                after.add(delta);
+            }
+        }
+        return new CatchUp(snapshot(), after);
+    }
+
+    // One copy of the prefix per compaction at most, and only if somebody joins
+    DocumentSnapshot snapshot() {
+        if (snapshot == null) {
+            snapshot = new DocumentSnapshot(snapshotSequence, content.substring(0, snapshotLength));
+        }
+        return snapshot;
+    }
+
+    int retainedDeltas() {
+        return deltas.size();
+    }
+}
+
+// One coalesced change as seen by a receiver
+record ChangeDelta(User sender, String text, int mergedChanges) {
+}
+
+record CoalescingStats(long changesMade, long deltasPublished, long receiverCalls) {
+}
+
+// Sender-side coalescing: a sender's changes are held for up to `window` and merged into one delta.
+// Changes are treated as append-style text edits, so merging concatenates them in order.
+// The delta is published early once it holds `maxMergedChanges` changes.
+class ChangeCoalescer implements AutoCloseable {
+    private final ChangeRingBuffer ring;
+    private final Duration window;
+    private final int maxMergedChanges;
+    private final LongAdder changesMade = new LongAdder();
+    private final LongAdder deltasPublished = new LongAdder();
+    private final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("coalesce-timer").factory());
+
+    // One open delta per sender, guarded by that sender's lock (not a monitor: publishing may park
+    // on a full ring). Holding it while publishing keeps the sender's deltas in order, and a
+    // sender stalled on the ring holds up nobody else.
+    private static final class SenderState {
+        final ReentrantLock lock = new ReentrantLock();
+        final StringBuilder text = new StringBuilder();
+        int merged;
+        long window;   // bumped on every publish, so a timer from an earlier window knows it is stale
+        ScheduledFuture<?> windowTimer;
+    }
+
+    private final Map<User, SenderState> senders = new ConcurrentHashMap<>();
+
+    ChangeCoalescer(ChangeRingBuffer ring, Duration window, int maxMergedChanges) {
+        if (maxMergedChanges <= 0) {
+            throw new IllegalArgumentException("maxMergedChanges must be positive: " + maxMergedChanges);
+        }
+        this.ring = ring;
+        this.window = window;
+        this.maxMergedChanges = maxMergedChanges;
+    }
+
+    public void offer(String change, User sender) {
+        changesMade.increment();
+        SenderState state = senders.computeIfAbsent(sender, s -> new SenderState());
+        state.lock.lock();
+        try {
+            if (state.merged == 0) {
+                long opened = state.window;
+                state.windowTimer = timer.schedule(() -> flushWindow(sender, state, opened),
+                        window.toNanos(), TimeUnit.NANOSECONDS);
+            }
+            state.text.append(change);
+            state.merged++;
+            if (state.merged >= maxMergedChanges) {
+                publish(sender, state);
+            }
+        } finally {
+            state.lock.unlock();
+        }
+    }
+
+    public void flush(User sender) {
+        SenderState state = senders.get(sender);
+        if (state != null) {
+            flushWindow(sender, state, -1);
+        }
+    }
+
+    public void flushAll() {
+        senders.forEach((sender, state) -> flushWindow(sender, state, -1));
+    }
+
+    // expectedWindow < 0 flushes whatever is open; a timer only flushes the window it was set for
+    private void flushWindow(User sender, SenderState state, long expectedWindow) {
+        state.lock.lock();
+        try {
+            if (state.merged > 0 && (expectedWindow < 0 || expectedWindow == state.window)) {
+                publish(sender, state);
+            }
+        } finally {
+            state.lock.unlock();
+        }
+    }
+
+    // caller holds state.lock
+    private void publish(User sender, SenderState state) {
+        state.windowTimer.cancel(false);
+        String text = state.text.toString();
+        int merged = state.merged;
+        state.text.setLength(0);
+        state.merged = 0;
+        state.window++;
+        ring.publish(text, sender, merged);
+        deltasPublished.increment();
+    }
+
+    long changesMade() {
+        return changesMade.sum();
+    }
+
+    long deltasPublished() {
+        return deltasPublished.sum();
+    }
+
+    @Override
+    public void close() {
+        flushAll();
+        timer.shutdown();
+    }
+}
+
 class CollaborativeDocument implements DocumentSessionMediator {
-    private List<User> users = new ArrayList<>();
+    private static final int DEFAULT_RING_CAPACITY = 1024;
+
+    private final ChangeRingBuffer ring;
+    private final Map<User, Receiver> receivers = new ConcurrentHashMap<>();
+    private final LongAdder receiverCalls = new LongAdder();
+    private final LongAdder deliveryFailures = new LongAdder();
+    private volatile ChangeCoalescer coalescer;   // null = every change is published as made
+    private volatile int receiverBatchSize = 1;   // 1 = deliver each change as it is read
+    private volatile long receiverBatchNanos;
+    private ChangeLog changeLog;
+    private volatile User stateReplica;   // the document's own CRDT replica, joined on the first edit
+
+    // Each joined user is drained by its own virtual thread from its own cursor. A receive call
+    // that throws is counted and skipped; it never stops the receiver or holds back anyone else.
+    private final class Receiver implements Runnable {
+        // Spinning only pays off when a publisher can run on another core meanwhile; on one core
+        // a thousand receivers spinning and yielding after every publish starve the publishers
+        private static final int SPINS_BEFORE_PARKING = Runtime.getRuntime().availableProcessors() > 1 ? 100 : 0;
+
+        final User user;
+        final AtomicLong cursor;
+        final AtomicLong delivered;
+        final Thread thread;
+        final long joinedAt;
+        final boolean forwardsBytes;
+        volatile boolean running = true;
+        private ChangeLog.CatchUp catchUp;
+
+        // A user joining after structured edits starts from a copy of the document's replica and
+        // replays the ring from the position that replica has integrated, so it also gets the ops
+        // made since; text changes up to joinedAt come with the change-log catch-up instead.
+        Receiver(User user) {
+            this.user = user;
+            this.cursor = new AtomicLong();
+            this.forwardsBytes = User.forwardsBytes(user);
+            User source = stateReplica;
+            Receiver sourceReceiver = source == null || source == user ? null : receivers.get(source);
+            ChangeRingBuffer.Registration registration =
+                    ring.addReader(cursor, sourceReceiver == null ? null : sourceReceiver.cursor, forwardsBytes);
+            this.joinedAt = registration.joinedAt();
+            this.catchUp = registration.catchUp();
+            if (sourceReceiver != null) {
+                // copied before join() returns, so the user's own first edits land on top of it;
+                // ops in the copy that are replayed again are ignored by integrate()
+                user.replica().loadFrom(source.replica());
+            }
+            // a joiner with catch-up pending has not been handed anything yet
+            boolean current = catchUp == null && cursor.get() == joinedAt;
+            this.delivered = new AtomicLong(current ? cursor.get() : Long.MIN_VALUE);
+            this.thread = Thread.ofVirtual().name("doc-receiver-" + user.name).start(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                receive();
+            } finally {
+                // a receiver that dies anyway must not wedge publishers or awaitDelivered();
+                // leaving ends up here too, so the buffers it still holds go back to the pool
+                ring.removeReader(cursor, forwardsBytes, joinedAt);
+                delivered.set(Long.MAX_VALUE);
+                receivers.remove(user, this);
+            }
+        }
+
+        private void receive() {
+            List<ChangeDelta> batch = new ArrayList<>();
+            if (catchUp != null) {
+                try {
+                    user.receiveSnapshot(catchUp.snapshot());
+                } catch (RuntimeException e) {
+                    deliveryFailures.increment();
+                }
+                // catch-up deltas go through the same batching as live ones
+                int batchSize = receiverBatchSize;
+                for (ChangeLog.LoggedChange delta : catchUp.deltas()) {
+                    if (batchSize <= 1) {
+                        receiverCalls.increment();
+                        try {
+                            user.receiveChange(delta.change(), delta.sender());
+                        } catch (RuntimeException e) {
+                            deliveryFailures.increment();
+                        }
+                    } else {
+                        batch.add(new ChangeDelta(delta.sender(), delta.change(), delta.mergedChanges()));
+                        if (batch.size() >= batchSize) {
+                            deliver(batch);
+                        }
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    deliver(batch);
+                }
+                catchUp = null;
+            }
+            long batchStarted = 0;
+            int idle = 0;
+            while (running) {
+                int batchSize = receiverBatchSize;
+                long next = cursor.get() + 1;
+                long available = ring.publishedSequence();
+                if (available < next) {
+                    if (idle < SPINS_BEFORE_PARKING) {
+                        Thread.onSpinWait();
+                        idle++;
+                    } else {
+                        if (batch.isEmpty()) {
+                            // caught up: awaitDelivered() must see that before this reader sleeps
+                            delivered.set(cursor.get());
+                        }
+                        // sleep until the next publish, or until the open batch is a window old
+                        ring.awaitPublished(next, batch.isEmpty() ? 0 : batchStarted + receiverBatchNanos);
+                    }
+                } else {
+                    idle = 0;
+                    // batched read: everything published since the last pass, then one cursor store
+                    // if an Error escapes mid-pass, the slot it escaped from is already released
+                    long seq = next;
+                    try {
+                        for (; seq <= available; seq++) {
+                            ChangeRingBuffer.Slot slot = ring.slot(seq);
+                            boolean replayed = seq <= joinedAt;
+                            // a buffer encoded before this reader joined was not counted for it, and
+                            // one encoded for byte-forwarding readers is none of a text reader's business
+                            EncodedChange encoded = replayed || !forwardsBytes ? null : slot.encoded;
+                            try {
+                                if (slot.sender == user) {
+                                    continue;
+                                }
+                                if (slot.op != null) {
+                                    receiverCalls.increment();
+                                    user.receiveEdit(slot.op, slot.sender);
+                                    continue;
+                                }
+                                if (replayed) {
+                                    continue;
+                                }
+                                if (batchSize <= 1) {
+                                    receiverCalls.increment();
+                                    if (encoded != null) {
+                                        user.receiveEncoded(encoded, slot.sender);
+                                    } else {
+                                        user.receiveChange(slot.change, slot.sender);
+                                    }
+                                    continue;
+                                }
+                                if (batch.isEmpty()) {
+                                    batchStarted = System.nanoTime();
+                                }
+                                batch.add(new ChangeDelta(slot.sender, slot.change, slot.mergedChanges));
+                                if (batch.size() >= batchSize) {
+                                    deliver(batch);
+                                }
+                            } catch (RuntimeException e) {
+                                deliveryFailures.increment();
+                            } finally {
+                                if (encoded != null) {
+                                    encoded.release();
+                                }
+                            }
+                        }
+                    } finally {
+                        cursor.lazySet(Math.min(seq, available));
+                    }
+                }
+                // per-recipient tick: a partial batch goes out once it is a window old
+                if (!batch.isEmpty() && (batchSize <= 1 || System.nanoTime() - batchStarted >= receiverBatchNanos)) {
+                    deliver(batch);
+                }
+                if (batch.isEmpty()) {
+                    delivered.lazySet(cursor.get());
+                }
+            }
+        }
+
+        private void deliver(List<ChangeDelta> batch) {
+            receiverCalls.increment();
+            try {
+                user.receiveBatch(List.copyOf(batch));
+            } catch (RuntimeException e) {
+                deliveryFailures.increment();
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    public CollaborativeDocument() {
+        this(DEFAULT_RING_CAPACITY);
+    }
+
+    public CollaborativeDocument(int ringCapacity) {
+        this.ring = new ChangeRingBuffer(ringCapacity);
+    }
+
     @Override
     public void join(User user) {
-        users.add(user);
+        receivers.computeIfAbsent(user, Receiver::new);
+    }
+
+    // The receiver unregisters itself from the ring as it stops, after its current pass
+    public void leave(User user) {
+        Receiver receiver = receivers.remove(user);
+        if (receiver != null) {
+            receiver.running = false;
+            LockSupport.unpark(receiver.thread);
+        }
     }
 
+    // Returns as soon as the change is in the ring (or the sender's open delta);
+    // receivers pick it up at their own pace
     @Override
     public void broadcastChange(String change, User sender) {
-        for (User user : users) {
-            if (user != sender) {
-                user.receiveChange(change, sender);
+        ChangeCoalescer current = coalescer;
+        if (current != null) {
+            current.offer(change, sender);
+        } else {
+            ring.publish(change, sender);
+        }
+    }
+
+    // Edits skip the coalescer: ops are already compact and order-sensitive per sender
+    @Override
+    public void broadcastEdit(SequenceOp op, User sender) {
+        if (stateReplica == null) {
+            joinStateReplica();
+        }
+        ring.publishEdit(op, sender);
+    }
+
+    // Current text as integrated by the document's replica, which reads the ring like any user
+    public String text() {
+        User replica = stateReplica;
+        return replica == null ? "" : replica.replica().text();
+    }
+
+    private synchronized void joinStateReplica() {
+        if (stateReplica != null) {
+            return;
+        }
+        User replica = new User("document", this) {
+            @Override
+            public void receiveChange(String change, User from) {
             }
+
+            @Override
+            public void receiveSnapshot(DocumentSnapshot snapshot) {
+            }
+        };
+        join(replica);
+        stateReplica = replica;
+    }
+
+    // Merges each sender's changes within `window` into one delta, and hands each recipient
+    // its deltas in batches of up to `receiverBatchSize`, or whatever arrived within `window`
+    public synchronized ChangeCoalescer enableCoalescing(Duration window, int maxMergedChanges, int receiverBatchSize) {
+        if (coalescer != null) {
+            throw new IllegalStateException("Coalescing is already enabled");
+        }
+        if (receiverBatchSize <= 0) {
+            throw new IllegalArgumentException("receiverBatchSize must be positive: " + receiverBatchSize);
+        }
+        this.receiverBatchNanos = window.toNanos();
+        this.receiverBatchSize = receiverBatchSize;
+        this.coalescer = new ChangeCoalescer(ring, window, maxMergedChanges);
+        return coalescer;
+    }
+
+    // Keeps a change log with a compacted snapshot every `snapshotInterval` changes, so that
+    // users joining later start from the current content. Changes made before this call are not captured.
+    public synchronized ChangeLog enableChangeLog(int snapshotInterval) {
+        if (changeLog != null) {
+            throw new IllegalStateException("Change log is already enabled");
+        }
+        changeLog = new ChangeLog(snapshotInterval, ring.publishedSequence());
+        ring.attachLog(changeLog);
+        return changeLog;
+    }
+
+    // Text changes are also encoded once into pooled buffers shared by all recipients, for
+    // users that forward bytes (see receiveEncoded) rather than read text
+    public ChangeBufferPool enableBinaryEncoding(ChangeBufferPool pool) {
+        ring.attachEncoding(pool);
+        return pool;
+    }
+
+    public CoalescingStats coalescingStats() {
+        ChangeCoalescer current = coalescer;
+        long published = ring.publishedSequence() + 1;
+        return current == null
+                ? new CoalescingStats(published, published, receiverCalls.sum())
+                : new CoalescingStats(current.changesMade(), current.deltasPublished(), receiverCalls.sum());
+    }
+
+    // Receive calls that threw; the receiver skipped them and carried on
+    public long deliveryFailures() {
+        return deliveryFailures.sum();
+    }
+
+    // Blocks until every current receiver has been handed everything made so far
+    public void awaitDelivered() {
+        ChangeCoalescer current = coalescer;
+        if (current != null) {
+            current.flushAll();
+        }
+        long target = ring.publishedSequence();
+        int idle = 0;
+        while (minDelivered(target) < target) {
+            idle = backOff(idle);
+        }
+    }
+
+    private long minDelivered(long fallback) {
+        long min = fallback;
+        for (Receiver receiver : receivers.values()) {
+            min = Math.min(min, receiver.delivered.get());
+        }
+        return min;
+    }
+
+    public void close() {
+        ChangeCoalescer current = coalescer;
+        if (current != null) {
+            current.close();
+        }
+        for (User user : List.copyOf(receivers.keySet())) {
+            leave(user);
+        }
+    }
+
+    // spin, then yield, then park: cheap when busy, quiet when idle
+    private static int backOff(int idle) {
+        if (idle < 100) {
+            Thread.onSpinWait();
+        } else if (idle < 200) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(100_000);
         }
+        return idle + 1;
     }
 }
 
 class User{
+    private static final ClassValue<Boolean> FORWARDS_BYTES = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("receiveEncoded", EncodedChange.class, User.class).getDeclaringClass() != User.class;
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
     protected String name;
     protected DocumentSessionMediator mediator;
+    protected final SequenceCrdt replica = new SequenceCrdt();
 
     public User(String name, DocumentSessionMediator mediator){
         this.name = name;
@@ -239,8 +1004,885 @@ class User{
     public void receiveChange(String change, User from){
         System.out.println(name + " received: \"" + change + "\" from " + from.name);
     }
+
+    // Encoded changes are only valid until this returns. A user that forwards changes as bytes
+    // overrides this to copy the shared payload; the default just reads the original text.
+    // Documents only encode changes while at least one recipient overrides it.
+    public void receiveEncoded(EncodedChange change, User from){
+        receiveChange(change.text(), from);
+    }
+
+    static boolean forwardsBytes(User user){
+        return FORWARDS_BYTES.get(user.getClass());
+    }
+
+    // Structured edits go to this user's replica first, then out to everyone else as a CRDT op
+    public void insertText(int index, String text){
+        mediator.broadcastEdit(replica.insertLocal(index, text), this);
+    }
+
+    public void deleteText(int index, int length){
+        mediator.broadcastEdit(replica.deleteLocal(index, length), this);
+    }
+
+    public void receiveEdit(SequenceOp op, User from){
+        replica.integrate(op);
+    }
+
+    public SequenceCrdt replica(){
+        return replica;
+    }
+
+    // First thing a user hears after joining a document that keeps a change log
+    public void receiveSnapshot(DocumentSnapshot snapshot){
+        System.out.println(name + " caught up to snapshot #" + snapshot.sequence() + ": \"" + snapshot.content() + "\"");
+    }
+
+    // Called instead of receiveChange when the document batches deliveries
+    public void receiveBatch(List<ChangeDelta> batch){
+        for (ChangeDelta delta : batch) {
+            receiveChange(delta.text(), delta.sender());
+        }
+    }
+}
+
+
+// ===================== Binary change encoding =====================
+// A text change is encoded once per broadcast into a pooled direct buffer:
+//   [op code: 1 byte][position: long][length: int][UTF-8 payload]
+// Text changes are appends (see ChangeLog), so the only op is APPEND: position is the character
+// offset the change lands at and length the payload size in bytes. Structured edits are not
+// encoded; a SequenceOp is already one immutable object shared by every recipient.
+// All recipients read the same buffer through the read-only EncodedChange view; each reader
+// releases it once, and the last release returns it to the pool, so per-broadcast allocation
+// no longer grows with the number of recipients. The original String travels alongside, so
+// text() costs nothing and only users that forward bytes touch the buffer.
+class EncodedChange {
+    static final byte OP_APPEND = 1;
+    static final int HEADER_BYTES = 13;
+
+    private final ByteBuffer buffer;
+    private final ChangeBufferPool pool;   // null = oversized, left to the GC
+    private final AtomicInteger references = new AtomicInteger();
+    private String text;
+
+    EncodedChange(ByteBuffer buffer, ChangeBufferPool pool) {
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    public byte opCode() {
+        return buffer.get(0);
+    }
+
+    public long position() {
+        return buffer.getLong(1);
+    }
+
+    public int length() {
+        return buffer.getInt(9);
+    }
+
+    public int encodedBytes() {
+        return HEADER_BYTES + length();
+    }
+
+    public String text() {
+        return text;
+    }
+
+    // Copies the whole record (header and payload) into `target` without allocating
+    public void copyTo(ByteBuffer target) {
+        int bytes = encodedBytes();
+        target.put(target.position(), buffer, 0, bytes);
+        target.position(target.position() + bytes);
+    }
+
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    void prepare(String text, int readers) {
+        this.text = text;
+        references.set(readers);
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            text = null;
+            if (pool != null) {
+                pool.recycle(this);
+            }
+        }
+    }
+}
+
+// Free lists of encoded-change buffers in power-of-two size classes from 256 bytes to 64 MB.
+// Each class keeps at most RETAINED_BYTES_PER_CLASS of idle buffers (and always one), so a burst
+// of big pastes is reused by the next one without pinning its peak in direct memory.
+class ChangeBufferPool {
+    private static final int MIN_CLASS_SHIFT = 8;
+    private static final int MAX_CLASS_SHIFT = 26;
+    private static final int RETAINED_BYTES_PER_CLASS = 16 << 20;
+    private static final ThreadLocal<CharsetEncoder> ENCODERS = ThreadLocal.withInitial(() ->
+            StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    private final List<ConcurrentLinkedQueue<EncodedChange>> free = new ArrayList<>();
+    private final AtomicInteger[] idle = new AtomicInteger[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+
+    public ChangeBufferPool() {
+        for (int shift = MIN_CLASS_SHIFT; shift <= MAX_CLASS_SHIFT; shift++) {
+            free.add(new ConcurrentLinkedQueue<>());
+            idle[shift - MIN_CLASS_SHIFT] = new AtomicInteger();
+        }
+    }
+
+    // Encodes a text change appended at `position` once for `readers` recipients
+    public EncodedChange encodeAppend(long position, String text, int readers) {
+        int payloadBytes = utf8Length(text);
+        EncodedChange change = acquire(EncodedChange.HEADER_BYTES + payloadBytes);
+        ByteBuffer buffer = change.buffer();
+        buffer.clear();
+        buffer.put(EncodedChange.OP_APPEND).putLong(position).putInt(payloadBytes);
+        CharsetEncoder encoder = ENCODERS.get().reset();
+        encoder.encode(CharBuffer.wrap(text), buffer, true);
+        encoder.flush(buffer);
+        change.prepare(text, readers);
+        return change;
+    }
+
+    public long allocatedBuffers() {
+        return allocated.sum();
+    }
+
+    public long reusedBuffers() {
+        return reused.sum();
+    }
+
+    private EncodedChange acquire(int bytes) {
+        int sizeClass = sizeClass(bytes);
+        if (sizeClass < 0) {
+            allocated.increment();
+            return new EncodedChange(ByteBuffer.allocateDirect(bytes), null);
+        }
+        EncodedChange change = free.get(sizeClass).poll();
+        if (change != null) {
+            idle[sizeClass].decrementAndGet();
+            reused.increment();
+            return change;
+        }
+        allocated.increment();
+        return new EncodedChange(ByteBuffer.allocateDirect(1 << (sizeClass + MIN_CLASS_SHIFT)), this);
+    }
+
+    void recycle(EncodedChange change) {
+        int sizeClass = sizeClass(change.buffer().capacity());
+        int limit = Math.max(1, RETAINED_BYTES_PER_CLASS >> (sizeClass + MIN_CLASS_SHIFT));
+        if (idle[sizeClass].incrementAndGet() <= limit) {
+            free.get(sizeClass).offer(change);
+        } else {
+            idle[sizeClass].decrementAndGet();   // over the cap: left to the GC
+        }
+    }
+
+    // -1 when larger than the biggest class
+    private static int sizeClass(int bytes) {
+        int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(bytes - 1));
+        return shift > MAX_CLASS_SHIFT ? -1 : shift - MIN_CLASS_SHIFT;
+    }
+
+    // Exact encoded size, so a buffer is never sized for the 3-bytes-per-char worst case;
+    // unpaired surrogates count as the 1-byte replacement the encoder writes for them
+    static int utf8Length(String text) {
+        int bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
 }
 
+// ===================== Sequence CRDT document state =====================
+// Every User holds a replica of the document text. An edit is applied to the editor's replica,
+// published as an op and integrated by every other replica on that replica's receiver thread,
+// so edits never wait on a document-wide lock and all replicas converge on the same text.
+// Ordering follows YATA (the algorithm behind Yjs): an insert records the characters to its left
+// and right at the time it was made, and concurrent inserts between the same neighbours are
+// ordered by client id. For memory, a run of characters typed by one client is a single item,
+// deleted text is dropped at once leaving only an id range (tombstone), and gc() merges
+// adjacent runs and tombstones back together.
+sealed interface SequenceOp permits InsertOp, DeleteOp {
+}
+
+// origin and rightOrigin are character ids (see SequenceCrdt.id), or SequenceCrdt.NONE
+record InsertOp(int client, int clock, long origin, long rightOrigin, String text) implements SequenceOp {
+}
+
+// ranges holds (client, clock, length) triples
+record DeleteOp(int[] ranges) implements SequenceOp {
+}
+
+class SequenceCrdt {
+    static final long NONE = -1L;
+    private static final AtomicInteger NEXT_CLIENT = new AtomicInteger();
+
+    private static final class Item {
+        final int client;
+        final int clock;
+        final long origin;
+        final long rightOrigin;
+        StringBuilder content;   // null once deleted
+        int length;
+        Item left;
+        Item right;
+
+        Item(int client, int clock, long origin, long rightOrigin, StringBuilder content, int length) {
+            this.client = client;
+            this.clock = clock;
+            this.origin = origin;
+            this.rightOrigin = rightOrigin;
+            this.content = content;
+            this.length = length;
+        }
+
+        boolean deleted() {
+            return content == null;
+        }
+
+        long lastId() {
+            return id(client, clock + length - 1);
+        }
+    }
+
+    private final int client = NEXT_CLIENT.getAndIncrement();
+    private int nextClock;
+    private Item head;
+    private int visibleLength;
+    private int itemCount;
+    // each client's items sorted by clock, for id lookups
+    private final Map<Integer, ArrayList<Item>> byClient = new HashMap<>();
+
+    static long id(int client, int clock) {
+        return ((long) client << 32) | (clock & 0xFFFFFFFFL);
+    }
+
+    public synchronized int length() {
+        return visibleLength;
+    }
+
+    public synchronized int itemCount() {
+        return itemCount;
+    }
+
+    public synchronized String text() {
+        StringBuilder text = new StringBuilder(visibleLength);
+        for (Item item = head; item != null; item = item.right) {
+            if (!item.deleted()) {
+                text.append(item.content);
+            }
+        }
+        return text.toString();
+    }
+
+    // Replaces this replica's content with a copy of `source`, keeping this replica's own client
+    // id; used to seed a late joiner before it integrates the ops made since the copy
+    public synchronized void loadFrom(SequenceCrdt source) {
+        head = null;
+        itemCount = 0;
+        byClient.clear();
+        synchronized (source) {
+            Item last = null;
+            for (Item item = source.head; item != null; item = item.right) {
+                Item copy = new Item(item.client, item.clock, item.origin, item.rightOrigin,
+                        item.deleted() ? null : new StringBuilder(item.content), item.length);
+                linkAfter(last, copy);
+                byClient.computeIfAbsent(copy.client, c -> new ArrayList<>()).add(copy);
+                last = copy;
+            }
+            visibleLength = source.visibleLength;
+        }
+        for (ArrayList<Item> items : byClient.values()) {
+            items.sort((a, b) -> Integer.compare(a.clock, b.clock));
+        }
+    }
+
+    public synchronized InsertOp insertLocal(int index, String text) {
+        if (index < 0 || index > visibleLength) {
+            throw new IndexOutOfBoundsException("Insert at " + index + " in a document of length " + visibleLength);
+        }
+        if (text.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to insert");
+        }
+        Item left = index == 0 ? null : visibleItemEndingAt(index);
+        Item right = left == null ? head : left.right;
+        InsertOp op = new InsertOp(client, nextClock, left == null ? NONE : left.lastId(),
+                right == null ? NONE : id(right.client, right.clock), text);
+        nextClock += text.length();
+        integrateInsert(op);
+        return op;
+    }
+
+    public synchronized DeleteOp deleteLocal(int index, int length) {
+        if (index < 0 || length <= 0 || index + length > visibleLength) {
+            throw new IndexOutOfBoundsException("Delete " + length + " at " + index + " in a document of length " + visibleLength);
+        }
+        Item item = index == 0 ? firstVisible(head) : visibleItemEndingAt(index).right;
+        List<int[]> ranges = new ArrayList<>();
+        int remaining = length;
+        while (remaining > 0) {
+            item = firstVisible(item);
+            if (item.length > remaining) {
+                split(item, remaining);
+            }
+            ranges.add(new int[] {item.client, item.clock, item.length});
+            remaining -= item.length;
+            markDeleted(item);
+            item = item.right;
+        }
+        int[] flat = new int[ranges.size() * 3];
+        for (int i = 0; i < ranges.size(); i++) {
+            System.arraycopy(ranges.get(i), 0, flat, i * 3, 3);
+        }
+        return new DeleteOp(flat);
+    }
+
+    public synchronized void integrate(SequenceOp op) {
+        if (op instanceof InsertOp insert) {
+            integrateInsert(insert);
+        } else if (op instanceof DeleteOp delete) {
+            applyDelete(delete);
+        }
+    }
+
+    // Merges neighbouring items that a split or a delete left apart and trims run buffers.
+    // Tombstones keep their ids because concurrent inserts may still name them as origins.
+    public synchronized void gc() {
+        Set<Item> removed = new HashSet<>();
+        for (Item item = head; item != null; item = item.right) {
+            while (item.right != null && canMerge(item, item.right)) {
+                Item next = item.right;
+                if (!item.deleted()) {
+                    item.content.append(next.content);
+                }
+                item.length += next.length;
+                unlink(next);
+                removed.add(next);
+            }
+            if (!item.deleted()) {
+                item.content.trimToSize();
+            }
+        }
+        if (!removed.isEmpty()) {
+            for (ArrayList<Item> items : byClient.values()) {
+                items.removeIf(removed::contains);
+            }
+        }
+    }
+
+    private void integrateInsert(InsertOp op) {
+        if (find(id(op.client(), op.clock())) != null) {
+            return; // already integrated
+        }
+        Item left = op.origin() == NONE ? null : splitAfter(op.origin());
+        Item right = op.rightOrigin() == NONE ? null : splitBefore(op.rightOrigin());
+        Item o = left == null ? head : left.right;
+        // YATA conflict resolution over the items between the two origins
+        Set<Item> conflicting = null;
+        Set<Item> beforeOrigin = null;
+        while (o != null && o != right) {
+            if (conflicting == null) {
+                conflicting = new HashSet<>();
+                beforeOrigin = new HashSet<>();
+            }
+            beforeOrigin.add(o);
+            conflicting.add(o);
+            if (o.origin == op.origin()) {
+                if (o.client < op.client()) {
+                    left = o;
+                    conflicting.clear();
+                } else if (o.rightOrigin == op.rightOrigin()) {
+                    break;
+                }
+            } else if (o.origin != NONE && beforeOrigin.contains(find(o.origin))) {
+                if (!conflicting.contains(find(o.origin))) {
+                    left = o;
+                    conflicting.clear();
+                }
+            } else {
+                break;
+            }
+            o = o.right;
+        }
+
+        visibleLength += op.text().length();
+        // run-length: a continuation of the left item's run extends it instead of adding an item
+        if (left != null && left.client == op.client() && left.clock + left.length == op.clock()
+                && !left.deleted() && left.lastId() == op.origin() && left.rightOrigin == op.rightOrigin()) {
+            left.content.append(op.text());
+            left.length += op.text().length();
+            return;
+        }
+        Item item = new Item(op.client(), op.clock(), op.origin(), op.rightOrigin(),
+                new StringBuilder(op.text()), op.text().length());
+        linkAfter(left, item);
+        ArrayList<Item> items = byClient.computeIfAbsent(op.client(), c -> new ArrayList<>());
+        items.add(insertionIndex(items, op.clock()), item);
+    }
+
+    private void applyDelete(DeleteOp op) {
+        int[] ranges = op.ranges();
+        for (int r = 0; r < ranges.length; r += 3) {
+            int rangeClient = ranges[r];
+            int end = ranges[r + 1] + ranges[r + 2];
+            Item item = splitBefore(id(rangeClient, ranges[r + 1]));
+            ArrayList<Item> items = byClient.get(rangeClient);
+            int index = indexOf(items, item.clock);
+            while (item != null && item.clock < end) {
+                if (item.clock + item.length > end) {
+                    split(item, end - item.clock);
+                }
+                markDeleted(item);
+                index++;
+                item = index < items.size() ? items.get(index) : null;
+            }
+        }
+    }
+
+    // The visible item whose last character is visible character index - 1
+    private Item visibleItemEndingAt(int index) {
+        int remaining = index;
+        for (Item item = head; item != null; item = item.right) {
+            if (item.deleted()) {
+                continue;
+            }
+            if (remaining <= item.length) {
+                if (remaining < item.length) {
+                    split(item, remaining);
+                }
+                return item;
+            }
+            remaining -= item.length;
+        }
+        throw new IllegalStateException("Index " + index + " is past the end of the document");
+    }
+
+    private static Item firstVisible(Item item) {
+        while (item.deleted()) {
+            item = item.right;
+        }
+        return item;
+    }
+
+    private void markDeleted(Item item) {
+        if (!item.deleted()) {
+            item.content = null;
+            visibleLength -= item.length;
+        }
+    }
+
+    // Item ending exactly at `id`
+    private Item splitAfter(long id) {
+        Item item = require(id);
+        int offset = (int) id - item.clock + 1;
+        if (offset < item.length) {
+            split(item, offset);
+        }
+        return item;
+    }
+
+    // Item starting exactly at `id`
+    private Item splitBefore(long id) {
+        Item item = require(id);
+        int offset = (int) id - item.clock;
+        return offset == 0 ? item : split(item, offset);
+    }
+
+    // Cuts `item` after `offset` characters and returns the new right part
+    private Item split(Item item, int offset) {
+        StringBuilder tail = item.deleted() ? null : new StringBuilder(item.content.substring(offset));
+        Item right = new Item(item.client, item.clock + offset, id(item.client, item.clock + offset - 1),
+                item.rightOrigin, tail, item.length - offset);
+        if (!item.deleted()) {
+            item.content.setLength(offset);
+        }
+        item.length = offset;
+        linkAfter(item, right);
+        ArrayList<Item> items = byClient.get(item.client);
+        items.add(indexOf(items, item.clock) + 1, right);
+        return right;
+    }
+
+    private boolean canMerge(Item a, Item b) {
+        return a.client == b.client && a.clock + a.length == b.clock && b.origin == a.lastId()
+                && a.rightOrigin == b.rightOrigin && a.deleted() == b.deleted();
+    }
+
+    private void linkAfter(Item left, Item item) {
+        item.left = left;
+        item.right = left == null ? head : left.right;
+        if (item.right != null) {
+            item.right.left = item;
+        }
+        if (left == null) {
+            head = item;
+        } else {
+            left.right = item;
+        }
+        itemCount++;
+    }
+
+    private void unlink(Item item) {
+        if (item.left == null) {
+            head = item.right;
+        } else {
+            item.left.right = item.right;
+        }
+        if (item.right != null) {
+            item.right.left = item.left;
+        }
+        itemCount--;
+    }
+
+    private Item require(long id) {
+        Item item = find(id);
+        if (item == null) {
+            throw new IllegalStateException("Op depends on an unknown character " + (id >>> 32) + ":" + (int) id);
+        }
+        return item;
+    }
+
+    private Item find(long id) {
+        ArrayList<Item> items = byClient.get((int) (id >>> 32));
+        if (items == null) {
+            return null;
+        }
+        int index = indexOf(items, (int) id);
+        if (index < 0) {
+            return null;
+        }
+        Item item = items.get(index);
+        return (int) id < item.clock + item.length ? item : null;
+    }
+
+    // Index of the item covering `clock`, or -1
+    private static int indexOf(ArrayList<Item> items, int clock) {
+        int low = 0;
+        int high = items.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (items.get(mid).clock <= clock) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private static int insertionIndex(ArrayList<Item> items, int clock) {
+        return indexOf(items, clock) + 1;
+    }
+}
+
+// ===================== Sharded session engine =====================
+// Thousands of documents share a fixed set of event-loop threads. Every document has a mailbox
+// and is scheduled on exactly one shard at a time, so its state is touched by one thread and
+// needs no locks. Documents start on the shard picked by their ID; the rebalancer moves a hot
+// document to the coldest shard by swapping its owner pointer, which takes effect the next time
+// the document is scheduled.
+// A ShardedDocument is the engine's own lightweight mediator rather than a hosted
+// CollaborativeDocument: CollaborativeDocument drains every user on a dedicated receiver thread,
+// which is exactly the per-document threading the shards replace.
+// Closing the engine stops new posts, runs everything already posted, and then returns.
+class ShardedDocument implements DocumentSessionMediator {
+    private final String id;
+    private final DocumentSessionEngine engine;
+    private final ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    volatile DocumentSessionEngine.EventLoopShard owner;
+    final AtomicLong windowNanos = new AtomicLong();   // busy time since the last rebalance
+
+    // confined to whichever shard is running this document
+    private final List<User> users = new ArrayList<>();
+
+    ShardedDocument(String id, DocumentSessionEngine engine, DocumentSessionEngine.EventLoopShard owner) {
+        this.id = id;
+        this.engine = engine;
+        this.owner = owner;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    @Override
+    public void join(User user) {
+        post(() -> users.add(user));
+    }
+
+    public void leave(User user) {
+        post(() -> users.remove(user));
+    }
+
+    @Override
+    public void broadcastChange(String change, User sender) {
+        post(() -> {
+            for (User user : users) {
+                if (user != sender) {
+                    user.receiveChange(change, sender);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void broadcastEdit(SequenceOp op, User sender) {
+        post(() -> {
+            for (User user : users) {
+                if (user != sender) {
+                    user.receiveEdit(op, sender);
+                }
+            }
+        });
+    }
+
+    // Completes once everything posted before it has run; fails if the engine is already closed
+    public CompletableFuture<Void> barrier() {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        try {
+            post(() -> done.complete(null));
+        } catch (RejectedExecutionException e) {
+            done.completeExceptionally(e);
+        }
+        return done;
+    }
+
+    void post(Runnable task) {
+        if (!engine.enterPost()) {
+            throw new RejectedExecutionException("Session engine is closed");
+        }
+        try {
+            mailbox.add(task);
+            schedule();
+        } finally {
+            engine.exitPost();
+        }
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            owner.runQueue.add(this);
+        }
+    }
+
+    // Runs on the shard thread; returns how many tasks ran
+    int runSlice(int maxTasks, LongAdder failures) {
+        int ran = 0;
+        Runnable task;
+        while (ran < maxTasks && (task = mailbox.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                failures.increment();
+            }
+            ran++;
+        }
+        return ran;
+    }
+
+    // A task posted between the last poll and this point is picked up by the re-check
+    void afterSlice() {
+        scheduled.set(false);
+        if (!mailbox.isEmpty()) {
+            schedule();
+        }
+    }
+}
+
+record ShardLoad(int shard, int documents, long busyNanos, long tasksRun, int runnableDocuments, long taskFailures) {
+}
+
+class DocumentSessionEngine implements AutoCloseable {
+    private static final int TASKS_PER_SLICE = 64;
+
+    final class EventLoopShard implements Runnable {
+        final int index;
+        final LinkedBlockingQueue<ShardedDocument> runQueue = new LinkedBlockingQueue<>();
+        final AtomicLong busyNanos = new AtomicLong();
+        final AtomicLong tasksRun = new AtomicLong();
+        final LongAdder taskFailures = new LongAdder();
+        long busyAtLastRebalance;   // guarded by the engine
+
+        EventLoopShard(int index) {
+            this.index = index;
+        }
+
+        // After close() the loop keeps going until its run queue is empty
+        @Override
+        public void run() {
+            while (true) {
+                ShardedDocument document;
+                try {
+                    document = runQueue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    continue; // only close() stops a shard, and it waits for the drain
+                }
+                if (document == null) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                long start = System.nanoTime();
+                int ran = document.runSlice(TASKS_PER_SLICE, taskFailures);
+                long spent = System.nanoTime() - start;
+                // single writer per counter, so a plain add is enough
+                busyNanos.lazySet(busyNanos.get() + spent);
+                tasksRun.lazySet(tasksRun.get() + ran);
+                document.windowNanos.addAndGet(spent);
+                document.afterSlice();
+            }
+        }
+    }
+
+    private final EventLoopShard[] shards;
+    private final Thread[] loops;
+    private final Map<String, ShardedDocument> documents = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService rebalancer =
+            Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("shard-rebalancer").factory());
+    private final AtomicInteger postsInFlight = new AtomicInteger();
+    private volatile boolean closed;
+
+    public DocumentSessionEngine(int shardCount, Duration rebalanceInterval) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount must be positive: " + shardCount);
+        }
+        shards = new EventLoopShard[shardCount];
+        loops = new Thread[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new EventLoopShard(i);
+            loops[i] = Thread.ofPlatform().name("doc-shard-" + i).daemon().start(shards[i]);
+        }
+        long interval = rebalanceInterval.toNanos();
+        rebalancer.scheduleAtFixedRate(this::rebalance, interval, interval, TimeUnit.NANOSECONDS);
+    }
+
+    public ShardedDocument open(String documentId) {
+        return documents.computeIfAbsent(documentId,
+                id -> new ShardedDocument(id, this, shards[Math.floorMod(id.hashCode(), shards.length)]));
+    }
+
+    public List<ShardLoad> shardLoads() {
+        int[] owned = new int[shards.length];
+        for (ShardedDocument document : documents.values()) {
+            owned[document.owner.index]++;
+        }
+        List<ShardLoad> loads = new ArrayList<>(shards.length);
+        for (EventLoopShard shard : shards) {
+            loads.add(new ShardLoad(shard.index, owned[shard.index], shard.busyNanos.get(), shard.tasksRun.get(),
+                    shard.runQueue.size(), shard.taskFailures.sum()));
+        }
+        return loads;
+    }
+
+    // Moves at most one document from the busiest shard to the idlest one, using busy time since
+    // the previous call. A document only moves if that lowers the busiest shard's load without
+    // making the idle shard the new busiest, so documents do not bounce back and forth.
+    public synchronized boolean rebalance() {
+        long[] load = new long[shards.length];
+        int hot = 0;
+        int cold = 0;
+        for (int i = 0; i < shards.length; i++) {
+            long busy = shards[i].busyNanos.get();
+            load[i] = busy - shards[i].busyAtLastRebalance;
+            shards[i].busyAtLastRebalance = busy;
+            if (load[i] > load[hot]) {
+                hot = i;
+            }
+            if (load[i] < load[cold]) {
+                cold = i;
+            }
+        }
+        long gap = load[hot] - load[cold];
+        ShardedDocument candidate = null;
+        long candidateLoad = 0;
+        for (ShardedDocument document : documents.values()) {
+            long window = document.windowNanos.getAndSet(0);
+            if (document.owner == shards[hot] && window < gap && window > candidateLoad) {
+                candidate = document;
+                candidateLoad = window;
+            }
+        }
+        // ignore small imbalances: the gap must be at least a quarter of the busiest shard's load
+        if (candidate == null || gap * 4 < load[hot]) {
+            return false;
+        }
+        candidate.owner = shards[cold];
+        return true;
+    }
+
+    // Pairs with close(): a post either sees the engine closed, or close() waits for it to land
+    boolean enterPost() {
+        postsInFlight.incrementAndGet();
+        if (closed) {
+            postsInFlight.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    void exitPost() {
+        postsInFlight.decrementAndGet();
+    }
+
+    // Rejects new posts, lets the shards drain what was posted before, and joins them. A document
+    // the rebalancer moved can be rescheduled onto a shard that already stopped, so whatever is
+    // left afterwards is run here, on the closing thread, with every shard gone.
+    @Override
+    public void close() {
+        closed = true;
+        rebalancer.shutdownNow();
+        while (postsInFlight.get() != 0) {
+            Thread.onSpinWait();
+        }
+        boolean interrupted = false;
+        for (Thread loop : loops) {
+            while (true) {
+                try {
+                    loop.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        for (ShardedDocument document : documents.values()) {
+            document.runSlice(Integer.MAX_VALUE, document.owner.taskFailures);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
 
 
 public class MediatorPattern {
@@ -260,13 +1902,298 @@ public class MediatorPattern {
         doc.join(IamGroot);
         // Alice makes a change, notifying Bob and Charlie
         alice.makeChange("Updated the document title");
+        doc.awaitDelivered();
         System.out.println();
         // Bob makes a change, notifying Alice and Charlie
         bob.makeChange("Added a new section to the document");
+        doc.awaitDelivered();
         System.out.println();
         Om.makeChange("Corrected a typo in the document");
+        doc.awaitDelivered();
         System.out.println();
         IamGroot.makeChange("Added a new image to the document");
+        doc.awaitDelivered();
         System.out.println();
+        doc.close();
+
+        // Coalescing: keystrokes merge into one delta per sender, receivers get batches
+        System.out.println("======== Coalesced typing =========");
+        CollaborativeDocument notes = new CollaborativeDocument();
+        User typist = new User("Alice", notes);
+        User reader = new User("Bob", notes);
+        notes.join(typist);
+        notes.join(reader);
+        notes.enableCoalescing(Duration.ofMillis(50), 64, 16);
+        for (char key : "Meeting notes: ship on Friday".toCharArray()) {
+            notes.broadcastChange(String.valueOf(key), typist);
+        }
+        notes.awaitDelivered();
+        CoalescingStats stats = notes.coalescingStats();
+        System.out.println(stats.changesMade() + " keystrokes -> " + stats.deltasPublished()
+                + " delta(s) -> " + stats.receiverCalls() + " receiver call(s)");
+        notes.close();
+        System.out.println();
+
+        // Late joiner: latest snapshot plus the deltas after it
+        System.out.println("======== Late joiner catch-up =========");
+        CollaborativeDocument minutes = new CollaborativeDocument();
+        minutes.enableChangeLog(4);
+        User scribe = new User("Alice", minutes);
+        minutes.join(scribe);
+        for (String change : List.of("Minutes:", " budget", " approved;", " hiring", " paused;", " retro Friday")) {
+            scribe.makeChange(change);
+        }
+        User lateJoiner = new User("Eve", minutes);
+        minutes.join(lateJoiner);
+        minutes.awaitDelivered();
+        minutes.close();
+        System.out.println();
+
+        // Shared state: concurrent edits converge on every replica
+        System.out.println("======== Concurrent edits (CRDT) =========");
+        CollaborativeDocument draft = new CollaborativeDocument();
+        User writer = new User("Alice", draft);
+        User editor = new User("Bob", draft);
+        draft.join(writer);
+        draft.join(editor);
+        writer.insertText(0, "Ship it");
+        draft.awaitDelivered();
+        // both edit at the same time, each against its own replica
+        writer.insertText(7, " on Friday");
+        editor.insertText(0, "Plan: ");
+        editor.deleteText(6, 4);
+        editor.insertText(6, "Launch");
+        draft.awaitDelivered();
+        System.out.println("Alice sees:    \"" + writer.replica().text() + "\"");
+        System.out.println("Bob sees:      \"" + editor.replica().text() + "\"");
+        System.out.println("Document says: \"" + draft.text() + "\"");
+        draft.close();
+        System.out.println();
+
+        // Binary encoding: one pooled buffer per broadcast, shared by every recipient
+        System.out.println("======== Binary change encoding =========");
+        CollaborativeDocument wiki = new CollaborativeDocument();
+        ChangeBufferPool pool = wiki.enableBinaryEncoding(new ChangeBufferPool());
+        User author = new User("Alice", wiki);
+        wiki.join(author);
+        wiki.join(new User("Bob", wiki));
+        // Charlie is remote: the shared bytes go straight to his connection, no String is built
+        ByteBuffer charlieConnection = ByteBuffer.allocate(1024);
+        wiki.join(new User("Charlie", wiki) {
+            @Override
+            public void receiveEncoded(EncodedChange change, User from) {
+                change.copyTo(charlieConnection);
+            }
+        });
+        author.makeChange("Pasted the Q3 budget table");
+        wiki.awaitDelivered();
+        author.makeChange("Pasted the hiring plan");
+        wiki.awaitDelivered();
+        System.out.println("2 broadcasts to 2 recipients: " + pool.allocatedBuffers() + " buffer(s) allocated, "
+                + pool.reusedBuffers() + " reused");
+        System.out.println("Charlie's connection was sent " + charlieConnection.position() + " bytes");
+        wiki.close();
+        System.out.println();
+
+        // Sharded engine: documents are spread over a fixed set of event-loop threads
+        System.out.println("======== Sharded session engine =========");
+        try (DocumentSessionEngine engine = new DocumentSessionEngine(4, Duration.ofSeconds(1))) {
+            ShardedDocument roadmap = engine.open("roadmap");
+            User carol = new User("Carol", roadmap);
+            User dave = new User("Dave", roadmap);
+            roadmap.join(carol);
+            roadmap.join(dave);
+            carol.makeChange("Moved launch to Q3");
+            dave.makeChange("Added hiring plan");
+            roadmap.barrier().join();
+            for (ShardLoad load : engine.shardLoads()) {
+                System.out.println("shard " + load.shard() + ": " + load.documents() + " document(s), "
+                        + load.tasksRun() + " task(s)");
+            }
+        }
+    }
+}
+
+// ===================== Benchmark suite =====================
+/*
+Measures how fast CollaborativeDocument's sequence CRDT absorbs concurrent edits, with every
+editor holding its own replica, so each edit is integrated once per replica.
+
+Scenario
+- crdt-edits: N editors on virtual threads each make K edits at random positions. An edit is a
+  typed burst of characters (consecutive keystrokes, so run-length encoding can merge them) or,
+  for --delete-percent of edits, a short deletion. The clock stops once every replica has
+  integrated every edit.
+
+Reported per run: mean and standard deviation over the measured iterations, edits per second,
+integrations per second (edits x replicas), items per replica before and after gc(), characters
+per item, and retained heap per replica. Every run also checks that all replicas converged on
+the same text. Results are appended to a CSV file. The defaults (1000 editors, 20 edits each,
+one warmup and three measured iterations) finish in about a minute on one core; integration cost
+grows with document length, so raising --edits grows the run faster than linearly.
+
+The suite lives in this file because its scenarios use the package-private classes above.
+Compile and run from this folder:
+    javac -d out MediatorPattern.java
+    java -Xmx4g -cp out MediatorBenchmark --editors 1000 --edits 20 --out crdt-results.csv
+*/
+
+// Editors that stay quiet: the benchmark measures integration, not System.out
+class BenchEditor extends User {
+    BenchEditor(String name, DocumentSessionMediator mediator) {
+        super(name, mediator);
+    }
+
+    @Override
+    public void receiveChange(String change, User from) {
+    }
+}
+
+class MediatorBenchmark {
+    private int editors = 1_000;
+    private int editsPerEditor = 20;
+    private int burstLength = 8;
+    private int deletePercent = 10;
+    private int warmupIterations = 1;
+    private int measuredIterations = 3;
+
+    public static void main(String[] args) throws Exception {
+        MediatorBenchmark bench = new MediatorBenchmark();
+        Path out = Path.of("crdt-results.csv");
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--editors" -> bench.editors = Integer.parseInt(args[++i]);
+                case "--edits" -> bench.editsPerEditor = Integer.parseInt(args[++i]);
+                case "--burst" -> bench.burstLength = Integer.parseInt(args[++i]);
+                case "--delete-percent" -> bench.deletePercent = Integer.parseInt(args[++i]);
+                case "--warmup" -> bench.warmupIterations = Integer.parseInt(args[++i]);
+                case "--iterations" -> bench.measuredIterations = Integer.parseInt(args[++i]);
+                case "--out" -> out = Path.of(args[++i]);
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        for (int i = 0; i < bench.warmupIterations; i++) {
+            bench.run();
+        }
+        List<RunResult> runs = new ArrayList<>();
+        for (int i = 0; i < bench.measuredIterations; i++) {
+            runs.add(bench.run());
+        }
+        String row = bench.summarize(runs);
+        System.out.println(csvHeader());
+        System.out.println(row);
+        write(out, row);
+    }
+
+    private record RunResult(double millis, long edits, int itemsBeforeGc, int itemsAfterGc, int textLength,
+                             long heapPerReplica, boolean converged) {
+    }
+
+    private RunResult run() throws InterruptedException {
+        CollaborativeDocument doc = new CollaborativeDocument(4096);
+        List<User> users = new ArrayList<>(editors);
+        for (int i = 0; i < editors; i++) {
+            User user = new BenchEditor("editor-" + i, doc);
+            users.add(user);
+            doc.join(user);
+        }
+        users.get(0).insertText(0, "The quick brown fox jumps over the lazy dog. ");
+        doc.awaitDelivered();
+        long heapBefore = usedHeap();
+
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<>(editors);
+        for (User user : users) {
+            threads.add(Thread.ofVirtual().start(() -> edit(user)));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        doc.awaitDelivered();
+        double millis = (System.nanoTime() - start) / 1e6;
+
+        String reference = doc.text();
+        boolean converged = true;
+        for (User user : users) {
+            converged &= user.replica().text().equals(reference);
+        }
+        SequenceCrdt sample = users.get(0).replica();
+        int itemsBeforeGc = sample.itemCount();
+        long heapPerReplica = (usedHeap() - heapBefore) / (editors + 1);
+        sample.gc();
+        int itemsAfterGc = sample.itemCount();
+        doc.close();
+        return new RunResult(millis, (long) editors * editsPerEditor, itemsBeforeGc, itemsAfterGc,
+                reference.length(), heapPerReplica, converged);
+    }
+
+    // Edits are made against the editor's own replica, whose length moves under it as remote
+    // edits arrive, so an edit that lands out of range is retried at a fresh position
+    private void edit(User user) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int made = 0;
+        while (made < editsPerEditor) {
+            try {
+                int length = user.replica().length();
+                if (length > burstLength && random.nextInt(100) < deletePercent) {
+                    int at = random.nextInt(length - burstLength);
+                    user.deleteText(at, 1 + random.nextInt(burstLength));
+                    made++;
+                } else {
+                    int at = random.nextInt(length + 1);
+                    for (int i = 0; i < burstLength && made < editsPerEditor; i++) {
+                        user.insertText(at + i, String.valueOf((char) ('a' + random.nextInt(26))));
+                        made++;
+                    }
+                }
+            } catch (IndexOutOfBoundsException e) {
+                // the replica shrank between reading its length and editing; pick again
+            }
+        }
+    }
+
+    private String summarize(List<RunResult> runs) {
+        double mean = 0;
+        for (RunResult run : runs) {
+            mean += run.millis();
+        }
+        mean /= runs.size();
+        double variance = 0;
+        for (RunResult run : runs) {
+            variance += (run.millis() - mean) * (run.millis() - mean);
+        }
+        double stdDev = Math.sqrt(variance / runs.size());
+        RunResult last = runs.get(runs.size() - 1);
+        boolean converged = runs.stream().allMatch(RunResult::converged);
+        double editsPerSecond = last.edits() / (mean / 1000);
+        double integrationsPerSecond = editsPerSecond * editors;
+        double charsPerItem = last.itemsAfterGc() == 0 ? 0 : (double) last.textLength() / last.itemsAfterGc();
+        // Locale.ROOT: a locale with a decimal comma would split every number into two columns
+        return String.format(Locale.ROOT, "crdt-edits,%d,%d,%d,%.2f,%.2f,%.0f,%.0f,%d,%d,%.2f,%d,%s",
+                editors, editsPerEditor, burstLength, mean, stdDev, editsPerSecond, integrationsPerSecond,
+                last.itemsBeforeGc(), last.itemsAfterGc(), charsPerItem, last.heapPerReplica(), converged);
+    }
+
+    private static String csvHeader() {
+        return "scenario,editors,edits_per_editor,burst,mean_ms,stddev_ms,edits_per_sec,integrations_per_sec,"
+                + "items_before_gc,items_after_gc,chars_per_item,heap_bytes_per_replica,converged";
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void write(Path out, String row) throws IOException {
+        boolean fresh = !Files.exists(out);
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(out,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+            if (fresh) {
+                writer.println(csvHeader());
+            }
+            writer.println(row);
+        }
     }
 }
@@ -274,107 +274,1660 @@ There's no abstraction to hide how snapshots are created or restored. Everything
 
 */
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Persistent (immutable) vector: a 32-way trie plus a tail block, as in Clojure's PersistentVector.
+// Every update copies only the path from the root to the changed slot (at most log32(n) arrays)
+// and shares every other node with the version it was derived from.
+final class PersistentVector<E> {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+    private static final long OBJECT_BYTES = 32;
+    private static final PersistentVector<?> EMPTY = new PersistentVector<>(0, BITS, new Object[WIDTH], new Object[0]);
+
+    private final int size;
+    private final int shift;
+    private final Object[] root;
+    private final Object[] tail;
+
+    private PersistentVector(int size, int shift, Object[] root, Object[] tail) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <E> PersistentVector<E> empty() {
+        return (PersistentVector<E>) EMPTY;
+    }
+
+    static <E> PersistentVector<E> of(Collection<? extends E> items) {
+        PersistentVector<E> vector = empty();
+        for (E item : items) {
+            vector = vector.append(item);
+        }
+        return vector;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    E get(int index) {
+        Objects.checkIndex(index, size);
+        return (E) leafFor(index)[index & MASK];
+    }
+
+    PersistentVector<E> append(E item) {
+        if (size - tailOffset() < WIDTH) {
+            Object[] newTail = Arrays.copyOf(tail, tail.length + 1);
+            newTail[tail.length] = item;
+            return new PersistentVector<>(size + 1, shift, root, newTail);
+        }
+        // tail is full: push it into the tree, growing a level when the root is full too
+        Object[] newRoot;
+        int newShift = shift;
+        if ((size >>> BITS) > (1 << shift)) {
+            newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = newPath(shift, tail);
+            newShift += BITS;
+        } else {
+            newRoot = pushTail(shift, root, tail);
+        }
+        return new PersistentVector<>(size + 1, newShift, newRoot, new Object[] {item});
+    }
+
+    PersistentVector<E> set(int index, E item) {
+        Objects.checkIndex(index, size);
+        if (index >= tailOffset()) {
+            Object[] newTail = tail.clone();
+            newTail[index & MASK] = item;
+            return new PersistentVector<>(size, shift, root, newTail);
+        }
+        return new PersistentVector<>(size, shift, assoc(shift, root, index, item), tail);
+    }
+
+    // Read-only List view; no copy is made
+    List<E> asList() {
+        return new AbstractList<>() {
+            @Override
+            public E get(int index) {
+                return PersistentVector.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return asList().toString();
+    }
+
+    // First index at or after `from` whose leaf is not the very same array in `other`: shared
+    // leaves hold the same elements, so a diff can skip them 32 at a time
+    int nextUnsharedIndex(PersistentVector<E> other, int from) {
+        int index = from;
+        while (index < size && index < other.size && leafFor(index) == other.leafFor(index)) {
+            index = (index | MASK) + 1;
+        }
+        return Math.min(index, size);
+    }
+
+    // Heap this version holds that `other` does not: nodes that are not shared with it, plus the
+    // elements that are not the same object at the same index. Shared subtrees are skipped, so
+    // comparing two neighbouring versions costs the path that was copied, not the whole vector.
+    long bytesNotSharedWith(PersistentVector<E> other, ToLongFunction<? super E> elementBytes) {
+        if (this == other) {
+            return 0;
+        }
+        long bytes = OBJECT_BYTES;
+        if (tail != other.tail) {
+            bytes += arrayBytes(tail) + elementsNotShared(tail, tailOffset(), other, elementBytes);
+        }
+        if (root != other.root) {
+            bytes += nodesNotShared(root, shift, other.root, other.shift, 0, other, elementBytes);
+        }
+        return bytes;
+    }
+
+    // `otherNode` is the node of `other` at `otherLevel` covering the same indexes, or null. When
+    // this trie is taller, other's root sits under child 0, as append() put it there.
+    private long nodesNotShared(Object[] node, int level, Object[] otherNode, int otherLevel, int base,
+                                PersistentVector<E> other, ToLongFunction<? super E> elementBytes) {
+        if (node == otherNode) {
+            return 0;
+        }
+        long bytes = arrayBytes(node);
+        if (level == 0) {
+            return bytes + elementsNotShared(node, base, other, elementBytes);
+        }
+        for (int i = 0; i < node.length && node[i] != null; i++) {
+            Object[] otherChild = null;
+            int childOtherLevel = otherLevel;
+            if (otherNode != null && level > otherLevel) {
+                otherChild = i == 0 ? otherNode : null;
+            } else if (otherNode != null && level == otherLevel) {
+                otherChild = (Object[]) otherNode[i];
+                childOtherLevel = level - BITS;
+            }
+            bytes += nodesNotShared((Object[]) node[i], level - BITS, otherChild, childOtherLevel,
+                    base + (i << level), other, elementBytes);
+        }
+        return bytes;
+    }
+
+    @SuppressWarnings("unchecked")
+    private long elementsNotShared(Object[] leaf, int base, PersistentVector<E> other,
+                                   ToLongFunction<? super E> elementBytes) {
+        long bytes = 0;
+        for (int i = 0; i < leaf.length && base + i < size; i++) {
+            int index = base + i;
+            if (index >= other.size || other.get(index) != leaf[i]) {
+                bytes += elementBytes.applyAsLong((E) leaf[i]);
+            }
+        }
+        return bytes;
+    }
+
+    private static long arrayBytes(Object[] array) {
+        return 16 + 8L * array.length;
+    }
+
+    private int tailOffset() {
+        return size < WIDTH ? 0 : ((size - 1) >>> BITS) << BITS;
+    }
+
+    private Object[] leafFor(int index) {
+        if (index >= tailOffset()) {
+            return tail;
+        }
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(index >>> level) & MASK];
+        }
+        return node;
+    }
+
+    private Object[] pushTail(int level, Object[] parent, Object[] tailNode) {
+        int slot = ((size - 1) >>> level) & MASK;
+        Object[] copy = parent.clone();
+        if (level == BITS) {
+            copy[slot] = tailNode;
+        } else {
+            Object[] child = (Object[]) parent[slot];
+            copy[slot] = child != null ? pushTail(level - BITS, child, tailNode) : newPath(level - BITS, tailNode);
+        }
+        return copy;
+    }
+
+    private static Object[] newPath(int level, Object[] node) {
+        if (level == 0) {
+            return node;
+        }
+        Object[] path = new Object[WIDTH];
+        path[0] = newPath(level - BITS, node);
+        return path;
+    }
+
+    private static Object[] assoc(int level, Object[] node, int index, Object item) {
+        Object[] copy = node.clone();
+        if (level == 0) {
+            copy[index & MASK] = item;
+        } else {
+            int slot = (index >>> level) & MASK;
+            copy[slot] = assoc(level - BITS, (Object[]) node[slot], index, item);
+        }
+        return copy;
+    }
+}
+
+// One immutable version of the resume. Setters derive a new version that shares every
+// unchanged field (and every unchanged skills node) with the previous one.
+// approxBytes is the heap this version would take on its own, kept up to date incrementally
+// so that sizing a memento stays O(1); it ignores sharing, so it is an upper bound.
+// bytesNotSharedWith is what a version adds on top of another one it was derived from.
+record ResumeState(String name, String education, String experience, PersistentVector<String> skills,
+                   long approxBytes) {
+    private static final long BASE_BYTES = 64;
+    private static final long SKILL_SLOT_BYTES = 8;
+    static final ResumeState EMPTY = new ResumeState(null, null, null, PersistentVector.empty(), BASE_BYTES);
+
+    ResumeState withName(String name) {
+        return new ResumeState(name, education, experience, skills, approxBytes - bytesOf(this.name) + bytesOf(name));
+    }
+
+    ResumeState withEducation(String education) {
+        return new ResumeState(name, education, experience, skills,
+                approxBytes - bytesOf(this.education) + bytesOf(education));
+    }
+
+    ResumeState withExperience(String experience) {
+        return new ResumeState(name, education, experience, skills,
+                approxBytes - bytesOf(this.experience) + bytesOf(experience));
+    }
+
+    ResumeState withSkills(List<String> newSkills) {
+        long bytes = approxBytes;
+        for (int i = 0; i < skills.size(); i++) {
+            bytes -= bytesOf(skills.get(i)) + SKILL_SLOT_BYTES;
+        }
+        for (String skill : newSkills) {
+            bytes += bytesOf(skill) + SKILL_SLOT_BYTES;
+        }
+        return new ResumeState(name, education, experience, PersistentVector.of(newSkills), bytes);
+    }
+
+    ResumeState withSkillAdded(String skill) {
+        return new ResumeState(name, education, experience, skills.append(skill),
+                approxBytes + bytesOf(skill) + SKILL_SLOT_BYTES);
+    }
+
+    ResumeState withSkillSet(int index, String skill) {
+        return new ResumeState(name, education, experience, skills.set(index, skill),
+                approxBytes - bytesOf(skills.get(index)) + bytesOf(skill));
+    }
+
+    long bytesNotSharedWith(ResumeState other) {
+        if (this == other) {
+            return 0;
+        }
+        long bytes = BASE_BYTES;
+        if (name != other.name) {
+            bytes += bytesOf(name);
+        }
+        if (education != other.education) {
+            bytes += bytesOf(education);
+        }
+        if (experience != other.experience) {
+            bytes += bytesOf(experience);
+        }
+        return bytes + skills.bytesNotSharedWith(other.skills, ResumeState::bytesOf);
+    }
+
+    // compact (Latin-1) String: header + array header + one byte per char
+    static long bytesOf(String value) {
+        return value == null ? 0 : 40 + value.length();
+    }
+}
 
 // Originator with Memento inside
 class ResumeEditor {
 
-    private String name;
-    private String education;
-    private String experience;
-    private List<String> skills;
+    // the current version; replaced, never mutated
+    private ResumeState state = ResumeState.EMPTY;
 
     public void setName(String name) {
-        this.name = name;
+        state = state.withName(name);
     }
 
     public void setEducation(String education) {
-        this.education = education;
+        state = state.withEducation(education);
     }
 
     public void setExperience(String experience) {
-        this.experience = experience;
+        state = state.withExperience(experience);
     }
 
+    // Replaces the whole list, so this is the one setter that costs O(skills)
     public void setSkills(List<String> skills) {
-        this.skills = skills;
+        state = state.withSkills(skills);
+    }
+
+    public void addSkill(String skill) {
+        state = state.withSkillAdded(skill);
+    }
+
+    public void setSkill(int index, String skill) {
+        state = state.withSkillSet(index, skill);
+    }
+
+    public List<String> getSkills() {
+        return state.skills().asList();
     }
 
     public void printResume() {
         System.out.println("x:----- Resume -----");
-        System.out.println("Name: " + name);
-        System.out.println("Education: " + education);
-        System.out.println("Experience: " + experience);
-        System.out.println("Skills: " + skills);
+        System.out.println("Name: " + state.name());
+        System.out.println("Education: " + state.education());
+        System.out.println("Experience: " + state.experience());
+        System.out.println("Skills: " + state.skills());
         System.out.println("x:------------------");
     }
 
-    // Save the current state as a Memento
+    // Save the current state as a Memento: O(1), just the root of the current version
     public Memento save() {
-        return new Memento(name, education, experience, List.copyOf(skills));
+        return new Memento(state);
     }
 
     // Restore state from Memento
     public void restore(Memento memento) {
-        this.name = memento.getName();
-        this.education = memento.getEducation();
-        this.experience = memento.getExperience();
-        this.skills = memento.getSkills();
+        this.state = memento.getState();
     }
 
     // Inner Memento class
     public static class Memento {
+        private static final byte OP_NAME = 1;
+        private static final byte OP_EDUCATION = 2;
+        private static final byte OP_EXPERIENCE = 3;
+        private static final byte OP_SKILLS_TRUNCATE = 4;
+        private static final byte OP_SKILL_SET = 5;
+        private static final byte OP_SKILL_APPEND = 6;
+
+        private final ResumeState state;
+
+        private Memento(ResumeState state) {
+            this.state = state;
+        }
+
+        private ResumeState getState() {
+            return state;
+        }
 
-        private final String name;
-        private final String education;
-        private final String experience;
-        private final List<String> skills;
+        // Heap this memento would hold on its own (upper bound, O(1))
+        long estimatedBytes() {
+            return state.approxBytes();
+        }
+
+        // Heap this memento holds beyond what it shares with `other`
+        long bytesNotSharedWith(Memento other) {
+            return state.bytesNotSharedWith(other.state);
+        }
+
+        // Opaque encoding for caretakers that move mementos off-heap; only the editor reads it
+        byte[] toBytes() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(state.approxBytes(), 1 << 20));
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                writeString(out, state.name());
+                writeString(out, state.education());
+                writeString(out, state.experience());
+                out.writeInt(state.skills().size());
+                for (int i = 0; i < state.skills().size(); i++) {
+                    writeString(out, state.skills().get(i));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
 
-        private Memento(String name, String education, String experience, List<String> skills) {
-            this.name = name;
-            this.education = education;
-            this.experience = experience;
-            this.skills = skills;
+        static Memento fromBytes(byte[] encoded) {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded))) {
+                ResumeState state = ResumeState.EMPTY
+                        .withName(readString(in))
+                        .withEducation(readString(in))
+                        .withExperience(readString(in));
+                int skillCount = in.readInt();
+                List<String> skills = new ArrayList<>(skillCount);
+                for (int i = 0; i < skillCount; i++) {
+                    skills.add(readString(in));
+                }
+                return new Memento(state.withSkills(skills));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
 
-        private String getName() {
-            return name;
+        // length-prefixed UTF-8, -1 for null (writeUTF stops at 64 KB)
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(utf8.length);
+            out.write(utf8);
         }
 
-        private String getEducation() {
-            return education;
+        private static String readString(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            if (length > in.available()) {
+                throw new IOException("String of " + length + " bytes runs past the end of the memento");
+            }
+            byte[] utf8 = new byte[length];
+            in.readFully(utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
         }
 
-        private String getExperience() {
-            return experience;
+        // Field-level delta from `earlier` to this memento, opaque to caretakers. Ops:
+        // name/education/experience replaced, skills truncated, skill replaced, skill appended.
+        byte[] deltaSince(Memento earlier) {
+            ResumeState from = earlier.state;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                if (!Objects.equals(from.name(), state.name())) {
+                    out.writeByte(OP_NAME);
+                    writeString(out, state.name());
+                }
+                if (!Objects.equals(from.education(), state.education())) {
+                    out.writeByte(OP_EDUCATION);
+                    writeString(out, state.education());
+                }
+                if (!Objects.equals(from.experience(), state.experience())) {
+                    out.writeByte(OP_EXPERIENCE);
+                    writeString(out, state.experience());
+                }
+                PersistentVector<String> before = from.skills();
+                PersistentVector<String> after = state.skills();
+                if (before != after) {
+                    if (after.size() < before.size()) {
+                        out.writeByte(OP_SKILLS_TRUNCATE);
+                        out.writeInt(after.size());
+                    }
+                    for (int i = after.nextUnsharedIndex(before, 0); i < after.size();
+                         i = after.nextUnsharedIndex(before, i + 1)) {
+                        if (i >= before.size()) {
+                            out.writeByte(OP_SKILL_APPEND);
+                            writeString(out, after.get(i));
+                        } else if (!Objects.equals(before.get(i), after.get(i))) {
+                            out.writeByte(OP_SKILL_SET);
+                            out.writeInt(i);
+                            writeString(out, after.get(i));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
         }
 
-        private List<String> getSkills() {
-            return skills;
+        Memento withDelta(byte[] delta) {
+            ResumeState next = state;
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta))) {
+                while (in.available() > 0) {
+                    int op = in.readByte();
+                    switch (op) {
+                        case OP_NAME -> next = next.withName(readString(in));
+                        case OP_EDUCATION -> next = next.withEducation(readString(in));
+                        case OP_EXPERIENCE -> next = next.withExperience(readString(in));
+                        case OP_SKILLS_TRUNCATE -> next = next.withSkills(next.skills().asList().subList(0, in.readInt()));
+                        case OP_SKILL_SET -> next = next.withSkillSet(in.readInt(), readString(in));
+                        case OP_SKILL_APPEND -> next = next.withSkillAdded(readString(in));
+                        default -> throw new IOException("Unknown delta op " + op);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return new Memento(next);
+        }
+
+        // Audit view: which fields differ from `earlier`, with both values
+        List<FieldChange> changesSince(Memento earlier) {
+            ResumeState from = earlier.state;
+            List<FieldChange> changes = new ArrayList<>();
+            addChange(changes, "name", from.name(), state.name());
+            addChange(changes, "education", from.education(), state.education());
+            addChange(changes, "experience", from.experience(), state.experience());
+            if (from.skills() != state.skills()) {
+                for (int i = 0; i < Math.max(from.skills().size(), state.skills().size()); i++) {
+                    addChange(changes, "skills[" + i + "]",
+                            i < from.skills().size() ? from.skills().get(i) : null,
+                            i < state.skills().size() ? state.skills().get(i) : null);
+                }
+            }
+            return changes;
+        }
+
+        private static void addChange(List<FieldChange> changes, String field, String before, String after) {
+            if (!Objects.equals(before, after)) {
+                changes.add(new FieldChange(field, before, after));
+            }
         }
     }
 }
 
-// Caretaker
-class ResumeHistory {
+record FieldChange(String field, String before, String after) {
+}
+
+// Append-only, memory-mapped journal of mementos for "restore to version N" and audit diffs.
+// A version is written in full once checkpointInterval versions have passed since the last
+// checkpoint; the ones in between are field-level deltas against the previous version. An
+// in-memory index maps each version to its record and to the checkpoint it is built on, so
+// rebuilding any version reads one checkpoint and at most checkpointInterval - 1 deltas,
+// however long the history is. Records are [payload length + 1][crc][kind][version][payload],
+// where a checkpoint's payload is [memento length][deflated memento] and a delta is stored as
+// is. The length is never zero (an unchanged version has an empty delta), so zeroed space reads
+// as the end of the journal. The OS may write mapped pages back in any order, so after a crash
+// a length can be on disk without its payload: the CRC-32C over kind, version and payload
+// catches that, and a record that fails it ends the journal. Reopening an existing file
+// rebuilds the index from the kinds on disk, so it may use a different checkpointInterval than
+// the one that wrote it; a record with an unknown kind, or a delta with no checkpoint before
+// it, also ends the journal.
+// One mapping backs the file, so it is limited to 2 GB.
+class MementoJournal implements AutoCloseable {
+    private static final byte CHECKPOINT = 1;
+    private static final byte DELTA = 2;
+    private static final int CRC_AT = 4;
+    private static final int KIND_AT = 8;
+    private static final int VERSION_AT = 9;
+    private static final int HEADER_BYTES = 13;
+    private static final int INITIAL_MAP_BYTES = 1 << 20;
+
+    private final FileChannel channel;
+    private final int checkpointInterval;
+    private MappedByteBuffer map;
+    private int writePosition;
+    private int[] offsets = new int[64];   // index: version -> record offset
+    private int[] bases = new int[64];     // version -> the checkpoint version it is built on
+    private int versions;
+    private ResumeEditor.Memento last;    // the newest version, to diff the next one against
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private final CRC32C crc = new CRC32C();
+
+    public MementoJournal(Path file, int checkpointInterval) throws IOException {
+        if (checkpointInterval <= 0) {
+            throw new IllegalArgumentException("checkpointInterval must be positive: " + checkpointInterval);
+        }
+        this.checkpointInterval = checkpointInterval;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_MAP_BYTES, channel.size()));
+        recover();
+    }
+
+    public int record(ResumeEditor editor) {
+        return append(editor.save());
+    }
+
+    // Returns the version number given to this memento
+    public synchronized int append(ResumeEditor.Memento memento) {
+        int version = versions;
+        boolean checkpoint = version == 0 || version - bases[version - 1] >= checkpointInterval;
+        byte[] payload = checkpoint ? deflate(memento.toBytes()) : memento.deltaSince(last);
+        ensureCapacity(HEADER_BYTES + payload.length);
+        int offset = writePosition;
+        map.put(offset + KIND_AT, checkpoint ? CHECKPOINT : DELTA);
+        map.putInt(offset + VERSION_AT, version);
+        map.put(offset + HEADER_BYTES, payload);
+        map.putInt(offset + CRC_AT, checksum(offset, payload.length));
+        map.putInt(offset, payload.length + 1);
+        writePosition += HEADER_BYTES + payload.length;
+        index(version, offset, checkpoint ? version : bases[version - 1]);
+        last = memento;
+        return version;
+    }
+
+    public synchronized int versions() {
+        return versions;
+    }
+
+    // Rebuilds `version` from its nearest checkpoint
+    public synchronized ResumeEditor.Memento mementoAt(int version) {
+        Objects.checkIndex(version, versions);
+        int base = bases[version];
+        ResumeEditor.Memento memento = ResumeEditor.Memento.fromBytes(inflate(payloadAt(offsets[base], CHECKPOINT)));
+        for (int v = base + 1; v <= version; v++) {
+            memento = memento.withDelta(payloadAt(offsets[v], DELTA));
+        }
+        return memento;
+    }
+
+    public void restore(ResumeEditor editor, int version) {
+        editor.restore(mementoAt(version));
+    }
+
+    public List<FieldChange> diff(int fromVersion, int toVersion) {
+        return mementoAt(toVersion).changesSince(mementoAt(fromVersion));
+    }
+
+    // Flushes the mapped pages to disk
+    public synchronized void force() {
+        map.force();
+    }
 
-    private Stack<ResumeEditor.Memento> history = new Stack<>();
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            map.force();
+            channel.close();
+        } finally {
+            deflater.end();
+            inflater.end();
+        }
+    }
+
+    private byte[] deflate(byte[] raw) {
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+        out.writeBytes(ByteBuffer.allocate(4).putInt(0, raw.length).array());
+        byte[] chunk = new byte[4096];
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] inflate(byte[] payload) {
+        ByteBuffer data = ByteBuffer.wrap(payload);
+        byte[] raw = new byte[data.getInt()];
+        inflater.reset();
+        inflater.setInput(payload, 4, payload.length - 4);
+        try {
+            int filled = 0;
+            while (filled < raw.length) {
+                int n = inflater.inflate(raw, filled, raw.length - filled);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new DataFormatException("checkpoint ends after " + filled + " of " + raw.length + " bytes");
+                }
+                filled += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt journal checkpoint", e);
+        }
+        return raw;
+    }
+
+    private byte[] payloadAt(int offset, byte kind) {
+        if (map.get(offset + KIND_AT) != kind) {
+            throw new IllegalStateException("Journal record at " + offset + " has kind " + map.get(offset + KIND_AT)
+                    + ", expected " + kind);
+        }
+        byte[] payload = new byte[map.getInt(offset) - 1];
+        map.get(offset + HEADER_BYTES, payload);
+        return payload;
+    }
+
+    // CRC-32C of the record's kind, version and payload
+    private int checksum(int offset, int payloadBytes) {
+        crc.reset();
+        crc.update(map.slice(offset + KIND_AT, HEADER_BYTES - KIND_AT + payloadBytes));
+        return (int) crc.getValue();
+    }
+
+    private void index(int version, int offset, int base) {
+        if (version == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            bases = Arrays.copyOf(bases, bases.length * 2);
+        }
+        offsets[version] = offset;
+        bases[version] = base;
+        versions = version + 1;
+    }
+
+    private void ensureCapacity(int recordBytes) {
+        long needed = (long) writePosition + recordBytes;
+        if (needed <= map.capacity()) {
+            return;
+        }
+        if (needed > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Memento journal is full (2 GB)");
+        }
+        long size = Math.min(Integer.MAX_VALUE, Math.max(needed, (long) map.capacity() * 2));
+        try {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void recover() {
+        int offset = 0;
+        while (offset + HEADER_BYTES <= map.capacity()) {
+            int length = map.getInt(offset) - 1;
+            byte kind = map.get(offset + KIND_AT);
+            if (length < 0 || offset + HEADER_BYTES + length > map.capacity()
+                    || map.getInt(offset + VERSION_AT) != versions
+                    || (kind != CHECKPOINT && (kind != DELTA || versions == 0))
+                    || map.getInt(offset + CRC_AT) != checksum(offset, length)) {
+                break;
+            }
+            index(versions, offset, kind == CHECKPOINT ? versions : bases[versions - 1]);
+            offset += HEADER_BYTES + length;
+        }
+        writePosition = offset;
+        // whatever follows a bad record is unreachable; clear it so records appended from here
+        // on can never line up with stale ones on the next reopen
+        if (offset + 4 <= map.capacity() && map.getInt(offset) != 0) {
+            byte[] zeros = new byte[8192];
+            for (int at = offset; at < map.capacity(); at += zeros.length) {
+                map.put(at, zeros, 0, Math.min(zeros.length, map.capacity() - at));
+            }
+        }
+        if (versions > 0) {
+            last = mementoAt(versions - 1);
+        }
+    }
+}
+
+// Takes snapshots off the editing thread. snapshot() only freezes the editor (an O(1) memento
+// over its persistent state; later edits copy-on-write the paths they touch), stamps it with
+// the journal version it will get and queues it. A single background thread runs every maxLag:
+// it serializes what was queued when it woke into the journal (deltas against the previous
+// version, deflated checkpoints), in batches of at most MAX_BATCH, and forces the file and
+// publishes durability after each batch. At most maxPending snapshots wait unwritten; past that,
+// snapshot() blocks until the writer catches up, so a snapshot is durable within maxLag plus the
+// time to write the at most maxPending ahead of it. Several threads may snapshot through one
+// snapshotter: a version is taken and queued in one step, so versions follow journal order.
+// After close() snapshot() throws. The snapshotter must be the only writer of its journal while
+// it is open.
+class AsyncSnapshotter implements AutoCloseable {
+    private static final int DEFAULT_MAX_PENDING = 16_384;
+    private static final int MAX_BATCH = 1_024;
+
+    private final MementoJournal journal;
+    private final ConcurrentLinkedQueue<ResumeEditor.Memento> pending = new ConcurrentLinkedQueue<>();
+    private final int maxPending;
+    private final Semaphore slots;         // one permit per snapshot that may wait unwritten
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private volatile int nextVersion;      // written under queueLock, with the memento queued
+    private volatile boolean closed;       // written under queueLock
+    private final ScheduledExecutorService writer;
+    private final Object durableLock = new Object();
+    private int durableVersions;          // versions written and forced, guarded by durableLock
+    private volatile RuntimeException failure;
+
+    public AsyncSnapshotter(MementoJournal journal, Duration maxLag) {
+        this(journal, maxLag, DEFAULT_MAX_PENDING);
+    }
+
+    public AsyncSnapshotter(MementoJournal journal, Duration maxLag, int maxPending) {
+        if (maxLag.isNegative() || maxLag.isZero()) {
+            throw new IllegalArgumentException("maxLag must be positive: " + maxLag);
+        }
+        if (maxPending <= 0) {
+            throw new IllegalArgumentException("maxPending must be positive: " + maxPending);
+        }
+        this.journal = journal;
+        this.maxPending = maxPending;
+        this.slots = new Semaphore(maxPending);
+        this.nextVersion = journal.versions();
+        this.durableVersions = journal.versions();
+        this.writer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "memento-snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long lagNanos = maxLag.toNanos();
+        writer.scheduleWithFixedDelay(this::drain, lagNanos, lagNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // Called on the editing thread; returns the journal version this snapshot will have.
+    // Blocks only while maxPending snapshots are still unwritten.
+    public int snapshot(ResumeEditor editor) {
+        checkOpen();
+        ResumeEditor.Memento memento = editor.save();
+        slots.acquireUninterruptibly();
+        queueLock.lock();
+        try {
+            if (closed || failure != null) {
+                slots.release();
+                checkOpen();
+            }
+            int version = nextVersion;
+            pending.offer(memento);
+            nextVersion = version + 1;
+            return version;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    public boolean isDurable(int version) {
+        synchronized (durableLock) {
+            return version < durableVersions;
+        }
+    }
+
+    // Blocks until `version` has been forced to disk; false on timeout
+    public boolean awaitDurable(int version, Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        synchronized (durableLock) {
+            while (version >= durableVersions) {
+                checkFailure();
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(durableLock, remaining);
+            }
+        }
+        return true;
+    }
+
+    // Writes what is queued and stops the writer; the journal stays open for its owner.
+    // Waits for the writer even if interrupted, then restores the interrupt. Editors blocked on
+    // a full queue wake as the last snapshots are written and see the snapshotter closed.
+    @Override
+    public void close() {
+        queueLock.lock();
+        try {
+            closed = true;
+        } finally {
+            queueLock.unlock();
+        }
+        writer.shutdown();
+        boolean interrupted = false;
+        while (!writer.isTerminated()) {
+            try {
+                writer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        drain();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        checkFailure();
+    }
+
+    // One pass covers only what was queued when it started, so it ends under sustained saves;
+    // snapshots queued meanwhile wait for the next pass
+    private void drain() {
+        if (failure != null) {
+            return;
+        }
+        int backlog;
+        synchronized (durableLock) {
+            backlog = nextVersion - durableVersions;
+        }
+        try {
+            while (backlog > 0) {
+                int batch = Math.min(backlog, MAX_BATCH);
+                int written = 0;
+                for (ResumeEditor.Memento memento; written < batch && (memento = pending.poll()) != null; ) {
+                    journal.append(memento);
+                    written++;
+                }
+                if (written == 0) {
+                    return; // every version below nextVersion is queued before it is handed out
+                }
+                journal.force();
+                synchronized (durableLock) {
+                    durableVersions += written;
+                    durableLock.notifyAll();
+                }
+                slots.release(written);
+                backlog -= written;
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+            slots.release(maxPending); // wake editors blocked on a full queue so they see the failure
+            synchronized (durableLock) {
+                durableLock.notifyAll();
+            }
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("Snapshot writer failed", failure);
+        }
+    }
+
+    private void checkOpen() {
+        checkFailure();
+        if (closed) {
+            throw new IllegalStateException("Snapshotter is closed");
+        }
+    }
+}
+
+// Caretaker with a heap budget. Recent mementos stay in memory, each charged only for the
+// bytes it does not share with the one before it (the oldest is charged in full). Once that
+// total exceeds the budget, the oldest are spilled to segment files on disk: the first of a
+// segment in full and the rest as field-level deltas, deflated as one stream. A segment is
+// sealed once its deltas would take a quarter of the budget in memory.
+// When undo runs out of in-memory mementos it replays the newest segment and keeps only the
+// newest mementos that fit the budget; the older ones stay in the file for the next page-in.
+// Used from the editing thread only, like the editor it serves.
+class ResumeHistory implements AutoCloseable {
+    private static final long DEFAULT_BUDGET_BYTES = 16L << 20;
+    private static final byte FULL = 1;
+    private static final byte DELTA = 2;
+
+    // A memento in memory and the bytes it adds on top of the one before it
+    private record HotMemento(ResumeEditor.Memento memento, long bytes) {
+    }
+
+    private static final class SpillSegment {
+        final Path path;
+        int records;      // records still on disk; a partial page-in takes them from the end
+        long deltaBytes;  // in-memory size of its deltas, charged as in the hot list
+
+        SpillSegment(Path path) {
+            this.path = path;
+        }
+    }
+
+    private final long budgetBytes;
+    private final long segmentBudget;
+    private final boolean ownsDirectory;
+    private Path spillDirectory;       // created on the first spill when not given
+
+    // newest last
+    private final ArrayDeque<HotMemento> hot = new ArrayDeque<>();
+    private long hotBytes;
+    // oldest first; only the last one is open for appends
+    private final ArrayDeque<SpillSegment> segments = new ArrayDeque<>();
+    private DataOutputStream tail;
+    private ResumeEditor.Memento lastSpilled;   // what the next delta in the tail is against
+    private int nextSegmentId;
+    private int spilledCount;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+
+    public ResumeHistory() {
+        this(DEFAULT_BUDGET_BYTES, null);
+    }
+
+    // spillDirectory may be null, in which case a temporary directory is used and removed on close()
+    public ResumeHistory(long budgetBytes, Path spillDirectory) {
+        if (budgetBytes <= 0) {
+            throw new IllegalArgumentException("budgetBytes must be positive: " + budgetBytes);
+        }
+        this.budgetBytes = budgetBytes;
+        this.segmentBudget = Math.max(1, budgetBytes / 4);
+        this.spillDirectory = spillDirectory;
+        this.ownsDirectory = spillDirectory == null;
+    }
 
     public void save(ResumeEditor editor) {
-        history.push(editor.save());
+        ResumeEditor.Memento memento = editor.save();
+        HotMemento newest = hot.peekLast();
+        long bytes = newest == null ? memento.estimatedBytes() : memento.bytesNotSharedWith(newest.memento());
+        hot.addLast(new HotMemento(memento, bytes));
+        hotBytes += bytes;
+        trimToBudget();
     }
 
     public void undo(ResumeEditor editor) {
-        if (!history.isEmpty()) {
-            editor.restore(history.pop());
+        if (hot.isEmpty()) {
+            pageIn();
+        }
+        if (!hot.isEmpty()) {
+            HotMemento newest = hot.pollLast();
+            hotBytes -= newest.bytes();
+            editor.restore(newest.memento());
         }
     }
+
+    public int size() {
+        return hot.size() + spilledCount;
+    }
+
+    public int spilledMementos() {
+        return spilledCount;
+    }
+
+    public long inMemoryBytes() {
+        return hotBytes;
+    }
+
+    @Override
+    public void close() {
+        try {
+            closeTail();
+            for (SpillSegment segment : segments) {
+                Files.deleteIfExists(segment.path);
+            }
+            segments.clear();
+            spilledCount = 0;
+            if (ownsDirectory && spillDirectory != null) {
+                Files.deleteIfExists(spillDirectory);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            deflater.end();
+            inflater.end();
+        }
+    }
+
+    // the newest memento always stays in memory
+    private void trimToBudget() {
+        while (hotBytes > budgetBytes && hot.size() > 1) {
+            HotMemento oldest = hot.pollFirst();
+            spill(oldest.memento());
+            hotBytes -= dropOldest(hot, oldest);
+        }
+    }
+
+    // `oldest` was just taken off the front of `mementos`; charges the new front in full, as it
+    // no longer shares anything with an older memento in memory, and returns the bytes freed
+    private static long dropOldest(ArrayDeque<HotMemento> mementos, HotMemento oldest) {
+        HotMemento next = mementos.pollFirst();
+        long bytes = next.memento().estimatedBytes();
+        mementos.addFirst(new HotMemento(next.memento(), bytes));
+        return oldest.bytes() + next.bytes() - bytes;
+    }
+
+    // record: [kind][payload length][payload], all inside the segment's deflate stream
+    private void spill(ResumeEditor.Memento memento) {
+        try {
+            if (tail == null || segments.peekLast().deltaBytes >= segmentBudget) {
+                openSegment();
+            }
+            SpillSegment segment = segments.peekLast();
+            boolean full = lastSpilled == null;
+            byte[] payload = full ? memento.toBytes() : memento.deltaSince(lastSpilled);
+            tail.writeByte(full ? FULL : DELTA);
+            tail.writeInt(payload.length);
+            tail.write(payload);
+            if (!full) {
+                segment.deltaBytes += memento.bytesNotSharedWith(lastSpilled);
+            }
+            segment.records++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        lastSpilled = memento;
+        spilledCount++;
+    }
+
+    private void openSegment() throws IOException {
+        closeTail();
+        if (spillDirectory == null) {
+            spillDirectory = Files.createTempDirectory("resume-history");
+        } else {
+            Files.createDirectories(spillDirectory);
+        }
+        SpillSegment segment = new SpillSegment(
+                spillDirectory.resolve(String.format("history-%06d.seg", nextSegmentId++)));
+        deflater.reset();
+        tail = new DataOutputStream(new DeflaterOutputStream(Files.newOutputStream(segment.path,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE),
+                deflater, 8192));
+        segments.addLast(segment);
+    }
+
+    // finishes the deflate stream; the next spill starts a new segment with a full memento
+    private void closeTail() throws IOException {
+        if (tail != null) {
+            tail.close();
+            tail = null;
+            lastSpilled = null;
+        }
+    }
+
+    // Replays the newest segment (in order, oldest first) and moves the newest of its mementos
+    // that fit the budget (at least one) into memory. The rest stay on disk: the segment is
+    // only deleted once nothing is left in it. A segment that cannot be read is left as it was,
+    // and the failure is reported to the caller.
+    private void pageIn() {
+        SpillSegment segment = segments.peekLast();
+        if (segment == null) {
+            return;
+        }
+        ArrayDeque<HotMemento> window = new ArrayDeque<>();
+        long windowBytes = 0;
+        try {
+            closeTail();
+            inflater.reset();
+            try (DataInputStream in = new DataInputStream(new InflaterInputStream(
+                    Files.newInputStream(segment.path), inflater, 8192))) {
+                ResumeEditor.Memento previous = null;
+                for (int i = 0; i < segment.records; i++) {
+                    byte kind = in.readByte();
+                    int length = in.readInt();
+                    if (length < 0 || kind != (previous == null ? FULL : DELTA)) {
+                        throw new IOException("Corrupt spill segment " + segment.path);
+                    }
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    ResumeEditor.Memento memento = previous == null
+                            ? ResumeEditor.Memento.fromBytes(payload)
+                            : previous.withDelta(payload);
+                    long bytes = window.isEmpty() ? memento.estimatedBytes() : memento.bytesNotSharedWith(previous);
+                    window.addLast(new HotMemento(memento, bytes));
+                    windowBytes += bytes;
+                    // older ones that no longer fit are dropped as the replay goes
+                    while (windowBytes > budgetBytes && window.size() > 1) {
+                        windowBytes -= dropOldest(window, window.pollFirst());
+                    }
+                    previous = memento;
+                }
+            }
+            segment.records -= window.size();
+            if (segment.records == 0) {
+                segments.pollLast();
+                Files.delete(segment.path);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        hot.addAll(window);
+        hotBytes += windowBytes;
+        spilledCount -= window.size();
+    }
 }
 
+// Pool of direct buffers that hold encoded mementos, shared by every document of a
+// HistoryService. Buffers come in power-of-two size classes carved from 1 MB slabs (a class
+// bigger than a slab gets a slab of its own), so a small memento costs one slice and no
+// per-buffer cleaner; released buffers go back on their class's free list. Off-heap bytes
+// track the peak number of resident mementos, not the open documents. Only mementos larger
+// than the biggest class, 64 MB, get a plain heap buffer that is not pooled.
+class MementoArena {
+    private static final int MIN_CLASS_SHIFT = 6;
+    private static final int MAX_CLASS_SHIFT = 26;
+    private static final int SLAB_BYTES = 1 << 20;
+
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> free = new ArrayList<>();
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    public MementoArena() {
+        for (int shift = MIN_CLASS_SHIFT; shift <= MAX_CLASS_SHIFT; shift++) {
+            free.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    // Copies `encoded` into a pooled buffer; the buffer's limit is the encoded length
+    public ByteBuffer store(byte[] encoded) {
+        return store(ByteBuffer.wrap(encoded));
+    }
+
+    // Copies the remaining bytes of `encoded` without moving its position
+    public ByteBuffer store(ByteBuffer encoded) {
+        ByteBuffer buffer = acquire(encoded.remaining());
+        buffer.clear();
+        buffer.put(0, encoded, encoded.position(), encoded.remaining()).limit(encoded.remaining());
+        return buffer;
+    }
+
+    public byte[] load(ByteBuffer buffer) {
+        byte[] encoded = new byte[buffer.limit()];
+        buffer.get(0, encoded);
+        return encoded;
+    }
+
+    public void release(ByteBuffer buffer) {
+        int sizeClass = sizeClass(buffer.capacity());
+        if (buffer.isDirect() && sizeClass >= 0) {
+            free.get(sizeClass).offer(buffer);
+        }
+    }
+
+    // Off-heap bytes carved so far, in use or free
+    public long reservedBytes() {
+        return reservedBytes.get();
+    }
+
+    private ByteBuffer acquire(int bytes) {
+        int sizeClass = sizeClass(bytes);
+        if (sizeClass < 0) {
+            return ByteBuffer.allocate(bytes);
+        }
+        ConcurrentLinkedQueue<ByteBuffer> queue = free.get(sizeClass);
+        ByteBuffer buffer = queue.poll();
+        while (buffer == null) {
+            carveSlab(sizeClass, queue);
+            buffer = queue.poll();
+        }
+        return buffer;
+    }
+
+    private void carveSlab(int sizeClass, ConcurrentLinkedQueue<ByteBuffer> queue) {
+        int blockBytes = 1 << (sizeClass + MIN_CLASS_SHIFT);
+        int slabBytes = Math.max(SLAB_BYTES, blockBytes);
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabBytes);
+        reservedBytes.addAndGet(slabBytes);
+        for (int offset = 0; offset < slabBytes; offset += blockBytes) {
+            queue.offer(slab.slice(offset, blockBytes));
+        }
+    }
+
+    // Smallest class that fits `bytes`, or -1 when it is too large to pool
+    private static int sizeClass(int bytes) {
+        int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(bytes, 1) - 1));
+        return shift > MAX_CLASS_SHIFT ? -1 : shift - MIN_CLASS_SHIFT;
+    }
+}
+
+// Undo history for many documents at once, one lock-free stack per document. Saves and undos
+// on different documents share nothing but the arena's free lists, and saves and undos on the
+// same document race only on one compareAndSet. A stack keeps its newest memento as is (it
+// shares its structure with the editor, so it holds only what changed) and, for every older
+// save, the field-level delta that turns the memento above it back into that save, encoded in
+// an arena buffer. A save therefore costs the size of the change, not of the document, and an
+// undo applies one delta.
+// A background sweep moves the stacks of documents idle for longer than idleTimeout to disk
+// and returns their buffers to the arena; the next save or undo on such a document pages its
+// stack back in, while depth() answers from the stub. The sweep only visits resident
+// documents, so memory and sweep cost follow the active documents; an evicted document keeps
+// a small stub in the registry. A save that races closeDocument lands in the document's next
+// history rather than in the one being dropped.
+class HistoryService implements AutoCloseable {
+
+    // One older save; `depth` counts this entry and everything under it
+    private static final class Node {
+        final ByteBuffer delta;   // turns the memento above into this one; null for the newest
+        final Node next;
+        final int depth;
+
+        Node(ByteBuffer delta, Node next) {
+            this.delta = delta;
+            this.next = next;
+            this.depth = next == null ? 1 : next.depth + 1;
+        }
+    }
+
+    // The stack as one value: the newest memento and the saves under it (both null when empty).
+    // Compared by identity, so a Top is never reused once it has been replaced.
+    private static final class Top {
+        final ResumeEditor.Memento memento;
+        final Node under;
+        final int depth;
+
+        Top(ResumeEditor.Memento memento, Node under) {
+            this.memento = memento;
+            this.under = under;
+            this.depth = memento == null ? 0 : 1 + (under == null ? 0 : under.depth);
+        }
+    }
+
+    private static final Top EMPTY = new Top(null, null);
+    // Markers that stand in for the stack while it is on disk, moving there or back, or dropped
+    private static final Top EVICTING = new Top(null, null);
+    private static final Top EVICTED = new Top(null, null);
+    private static final Top LOADING = new Top(null, null);
+    private static final Top CLOSED = new Top(null, null);
+
+    // Treiber stack over Top values
+    private final class DocumentStack {
+        final AtomicReference<Top> top = new AtomicReference<>(EMPTY);
+        final Path file;
+        volatile long lastAccessNanos = System.nanoTime();
+        volatile int evictedDepth;   // what depth() reports while the stack is off the heap
+
+        DocumentStack(Path file) {
+            this.file = file;
+        }
+
+        // false once the stack has been closed
+        boolean push(ResumeEditor.Memento memento) {
+            while (true) {
+                Top current = residentTop();
+                if (current == CLOSED) {
+                    return false;
+                }
+                ByteBuffer delta = current.memento == null ? null
+                        : arena.store(current.memento.deltaSince(memento));
+                Node under = current.memento == null ? null : new Node(delta, current.under);
+                if (top.compareAndSet(current, new Top(memento, under))) {
+                    return true;
+                }
+                if (delta != null) {
+                    arena.release(delta);
+                }
+            }
+        }
+
+        // null when the stack is empty or closed
+        ResumeEditor.Memento pop() {
+            while (true) {
+                Top current = residentTop();
+                if (current == CLOSED || current.memento == null) {
+                    return null;
+                }
+                Node under = current.under;
+                Top next = EMPTY;
+                if (under != null) {
+                    try {
+                        next = new Top(current.memento.withDelta(arena.load(under.delta)), under.next);
+                    } catch (RuntimeException e) {
+                        // a racing pop, eviction or close may have recycled the buffer; only
+                        // the thread that still owns `current` can trust what it read
+                        if (top.get() != current) {
+                            continue;
+                        }
+                        throw e;
+                    }
+                }
+                if (top.compareAndSet(current, next)) {
+                    if (under != null) {
+                        arena.release(under.delta);
+                    }
+                    return current.memento;
+                }
+            }
+        }
+
+        // Does not page the stack in or count as an access
+        int depth() {
+            Top current = top.get();
+            if (current == EVICTED || current == EVICTING || current == LOADING) {
+                return evictedDepth;
+            }
+            return current.depth;
+        }
+
+        // The current top once the stack is in memory (or CLOSED), paging it in if it was evicted
+        Top residentTop() {
+            lastAccessNanos = System.nanoTime();
+            while (true) {
+                Top current = top.get();
+                if (current == EVICTED) {
+                    if (top.compareAndSet(EVICTED, LOADING)) {
+                        pageIn();
+                    }
+                } else if (current == EVICTING || current == LOADING) {
+                    Thread.yield();
+                } else {
+                    return current;
+                }
+            }
+        }
+
+        // Moves the stack to disk if the document has been idle since `cutoffNanos`. An empty
+        // stack writes no file. It leaves the resident set before EVICTED is published, so a
+        // page-in that follows always finds it absent and adds it back.
+        boolean evictIfIdle(long cutoffNanos) {
+            Top current = top.get();
+            if (current == EVICTING || current == EVICTED || current == LOADING || current == CLOSED
+                    || lastAccessNanos - cutoffNanos > 0) {
+                return false;
+            }
+            // published before EVICTING, so depth() never sees the marker with a stale value
+            evictedDepth = current.depth;
+            if (!top.compareAndSet(current, EVICTING)) {
+                return false;
+            }
+            try {
+                if (current.memento != null) {
+                    write(current);
+                }
+            } catch (IOException | RuntimeException e) {
+                top.set(current);
+                throw e instanceof IOException io ? new UncheckedIOException(io) : (RuntimeException) e;
+            }
+            resident.remove(this);
+            top.set(EVICTED);
+            release(current.under);
+            return true;
+        }
+
+        // Drops the stack for good; waits out an eviction or page-in in flight
+        void close() throws IOException {
+            while (true) {
+                Top current = top.get();
+                if (current == CLOSED) {
+                    return;
+                }
+                if (current == EVICTING || current == LOADING) {
+                    Thread.yield();
+                } else if (top.compareAndSet(current, CLOSED)) {
+                    resident.remove(this);
+                    if (current == EVICTED) {
+                        // on disk only: no need to page it in just to throw it away
+                        Files.deleteIfExists(file);
+                    } else {
+                        release(current.under);
+                    }
+                    return;
+                }
+            }
+        }
+
+        private void release(Node under) {
+            for (Node node = under; node != null; node = node.next) {
+                arena.release(node.delta);
+            }
+        }
+
+        // file: [count][length][newest memento] then [length][delta] for each older save, newest
+        // first; the deltas are gathered straight from the arena
+        private void write(Top stack) throws IOException {
+            byte[] newest = stack.memento.toBytes();
+            ByteBuffer[] parts = new ByteBuffer[2 + 2 * (stack.depth - 1)];
+            parts[0] = ByteBuffer.allocate(8).putInt(0, stack.depth).putInt(4, newest.length);
+            parts[1] = ByteBuffer.wrap(newest);
+            int i = 2;
+            for (Node node = stack.under; node != null; node = node.next) {
+                parts[i++] = ByteBuffer.allocate(4).putInt(0, node.delta.limit());
+                parts[i++] = node.delta.duplicate().position(0);
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long remaining = 0;
+                for (ByteBuffer part : parts) {
+                    remaining += part.remaining();
+                }
+                while (remaining > 0) {
+                    remaining -= channel.write(parts);
+                }
+            }
+        }
+
+        // Called holding LOADING. A file that cannot be read, or does not parse, puts the
+        // stack back to EVICTED, keeps the file and reports the failure to the caller.
+        private void pageIn() {
+            Top loaded = EMPTY;
+            if (Files.exists(file)) {
+                List<ByteBuffer> deltas = new ArrayList<>();
+                try {
+                    ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+                    int count = data.getInt();
+                    if (count < 1) {
+                        throw new IOException("Bad memento count " + count);
+                    }
+                    ResumeEditor.Memento newest = ResumeEditor.Memento.fromBytes(next(data).array());
+                    for (int i = 1; i < count; i++) {
+                        ByteBuffer delta = next(data);
+                        deltas.add(arena.store(ByteBuffer.wrap(delta.array(), delta.arrayOffset(), delta.limit())));
+                    }
+                    Node under = null;
+                    for (int i = deltas.size() - 1; i >= 0; i--) {
+                        under = new Node(deltas.get(i), under);
+                    }
+                    loaded = new Top(newest, under);
+                } catch (IOException | RuntimeException e) {
+                    for (ByteBuffer delta : deltas) {
+                        arena.release(delta);
+                    }
+                    top.set(EVICTED);
+                    throw new UncheckedIOException(e instanceof IOException io ? io
+                            : new IOException("Corrupt history file " + file, e));
+                }
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    // harmless: the next eviction truncates it
+                }
+            }
+            // back in the resident set while still LOADING, so a close() that runs as soon as
+            // `loaded` is published always finds it there and takes it out for good
+            resident.add(this);
+            top.set(loaded);
+        }
+
+        // [length][bytes] from `data`, as a buffer over a copy
+        private ByteBuffer next(ByteBuffer data) throws IOException {
+            int length = data.getInt();
+            if (length < 0 || length > data.remaining()) {
+                throw new IOException("Record of " + length + " bytes runs past the end of " + file);
+            }
+            byte[] bytes = new byte[length];
+            data.get(bytes);
+            return ByteBuffer.wrap(bytes);
+        }
+    }
+
+    private final MementoArena arena = new MementoArena();
+    private final ConcurrentHashMap<String, DocumentStack> documents = new ConcurrentHashMap<>();
+    private final Set<DocumentStack> resident = ConcurrentHashMap.newKeySet();
+    private final AtomicLong nextFileId = new AtomicLong();
+    private final Path spillDirectory;
+    private final boolean ownsDirectory;
+    private final long idleNanos;
+    private final ScheduledExecutorService sweeper;
+    private final ReentrantLock sweepLock = new ReentrantLock();
+
+    // spillDirectory may be null, in which case a temporary directory is used and removed on close()
+    public HistoryService(Path spillDirectory, Duration idleTimeout) throws IOException {
+        if (idleTimeout.isNegative() || idleTimeout.isZero()) {
+            throw new IllegalArgumentException("idleTimeout must be positive: " + idleTimeout);
+        }
+        this.ownsDirectory = spillDirectory == null;
+        this.spillDirectory = ownsDirectory ? Files.createTempDirectory("resume-histories")
+                : Files.createDirectories(spillDirectory);
+        this.idleNanos = idleTimeout.toNanos();
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "history-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, idleNanos / 2);
+        sweeper.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    public void save(String documentId, ResumeEditor editor) {
+        ResumeEditor.Memento memento = editor.save();
+        // a stack closed under us is already out of the registry; the next one is the live one
+        while (!stack(documentId).push(memento)) {
+            Thread.onSpinWait();
+        }
+    }
+
+    // false when the document has nothing to undo
+    public boolean undo(String documentId, ResumeEditor editor) {
+        DocumentStack stack = documents.get(documentId);
+        ResumeEditor.Memento memento = stack == null ? null : stack.pop();
+        if (memento == null) {
+            return false;
+        }
+        editor.restore(memento);
+        return true;
+    }
+
+    public int depth(String documentId) {
+        DocumentStack stack = documents.get(documentId);
+        return stack == null ? 0 : stack.depth();
+    }
+
+    // Drops a document's history; call once its editors are done with it
+    public void closeDocument(String documentId) throws IOException {
+        DocumentStack stack = documents.remove(documentId);
+        if (stack != null) {
+            stack.close();
+        }
+    }
+
+    // Evicts every resident document idle for longer than idleTimeout; returns how many.
+    // One sweep runs at a time, so none is still in flight when this returns.
+    public int evictIdle() {
+        sweepLock.lock();
+        try {
+            long cutoff = System.nanoTime() - idleNanos;
+            int evicted = 0;
+            for (DocumentStack stack : resident) {
+                if (stack.evictIfIdle(cutoff)) {
+                    evicted++;
+                }
+            }
+            return evicted;
+        } finally {
+            sweepLock.unlock();
+        }
+    }
+
+    public int openDocuments() {
+        return documents.size();
+    }
+
+    public int residentDocuments() {
+        return resident.size();
+    }
+
+    public long arenaBytes() {
+        return arena.reservedBytes();
+    }
+
+    // Waits for the sweeper even if interrupted, then restores the interrupt
+    @Override
+    public void close() throws IOException {
+        sweeper.shutdown();
+        boolean interrupted = false;
+        while (!sweeper.isTerminated()) {
+            try {
+                sweeper.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        try {
+            for (String documentId : new ArrayList<>(documents.keySet())) {
+                closeDocument(documentId);
+            }
+            if (ownsDirectory) {
+                Files.deleteIfExists(spillDirectory);
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private DocumentStack stack(String documentId) {
+        return documents.computeIfAbsent(documentId, id -> {
+            DocumentStack stack = new DocumentStack(
+                    spillDirectory.resolve(String.format("doc-%d.hist", nextFileId.getAndIncrement())));
+            resident.add(stack);
+            return stack;
+        });
+    }
+
+    private void sweep() {
+        try {
+            evictIdle();
+        } catch (UncheckedIOException e) {
+            // the document stays in memory; the next sweep tries again
+        }
+    }
+}
+
+
 // Main driver
 
 public class MementoPattern {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException, InterruptedException {
         ResumeEditor editor = new ResumeEditor();
         ResumeHistory history = new ResumeHistory();
     
@@ -397,6 +1950,93 @@ public class MementoPattern {
     
         history.undo(editor);
         editor.printResume(); // Shows resume after second undo (initial state)
+        System.out.println("");
+
+        // A small budget: older snapshots spill to disk and come back on undo
+        try (ResumeHistory budgeted = new ResumeHistory(4_096, null)) {
+            ResumeEditor draft = new ResumeEditor();
+            draft.setName("Bob");
+            for (int version = 1; version <= 40; version++) {
+                draft.setExperience("Revision " + version);
+                draft.addSkill("Skill " + version);
+                budgeted.save(draft);
+            }
+            System.out.println("Saved " + budgeted.size() + " versions, " + budgeted.spilledMementos()
+                    + " spilled to disk, ~" + budgeted.inMemoryBytes() + " bytes in memory");
+            for (int i = 0; i < 40; i++) {
+                budgeted.undo(draft);
+            }
+            draft.printResume(); // back to the first revision
+        }
+        System.out.println("");
+
+        // Journal: jump to any version and diff two versions
+        Path journalFile = Files.createTempFile("resume-journal", ".log");
+        try (MementoJournal journal = new MementoJournal(journalFile, 4)) {
+            ResumeEditor audited = new ResumeEditor();
+            audited.setName("Carol");
+            audited.setEducation("M.Sc Physics");
+            audited.setExperience("Analyst");
+            audited.setSkills(Arrays.asList("Python"));
+            for (int version = 0; version < 10; version++) {
+                journal.record(audited);
+                audited.addSkill("Skill " + version);
+                if (version == 5) {
+                    audited.setExperience("Data Scientist");
+                }
+            }
+            journal.restore(audited, 2);
+            audited.printResume(); // version 2
+            for (FieldChange change : journal.diff(2, 7)) {
+                System.out.println(change.field() + ": " + change.before() + " -> " + change.after());
+            }
+        } finally {
+            Files.deleteIfExists(journalFile);
+        }
+        System.out.println("");
+
+        // Snapshots taken off the editing thread, durable within the lag bound
+        Path snapshotFile = Files.createTempFile("resume-snapshots", ".log");
+        try (MementoJournal journal = new MementoJournal(snapshotFile, 64);
+             AsyncSnapshotter snapshotter = new AsyncSnapshotter(journal, Duration.ofMillis(50))) {
+            ResumeEditor typing = new ResumeEditor();
+            typing.setName("Dave");
+            int lastVersion = -1;
+            long start = System.nanoTime();
+            for (int keystroke = 0; keystroke < 10_000; keystroke++) {
+                typing.setExperience("Draft " + keystroke);
+                lastVersion = snapshotter.snapshot(typing);
+            }
+            long nanosPerSnapshot = (System.nanoTime() - start) / 10_000;
+            boolean durable = snapshotter.awaitDurable(lastVersion, Duration.ofSeconds(5));
+            System.out.println("10000 snapshots, ~" + nanosPerSnapshot + " ns each on the editing thread, durable: "
+                    + durable);
+            journal.restore(typing, 1234);
+            typing.printResume(); // Draft 1234
+        } finally {
+            Files.deleteIfExists(snapshotFile);
+        }
+        System.out.println("");
+
+        // Many documents, one service: idle documents move to disk and come back on undo
+        try (HistoryService service = new HistoryService(null, Duration.ofMillis(20))) {
+            ResumeEditor shared = new ResumeEditor();
+            for (int document = 0; document < 1_000; document++) {
+                shared.setName("Candidate " + document);
+                for (int revision = 1; revision <= 3; revision++) {
+                    shared.setExperience("Revision " + revision);
+                    service.save("resume-" + document, shared);
+                }
+            }
+            Thread.sleep(200);
+            service.evictIdle();
+            System.out.println(service.openDocuments() + " documents open, " + service.residentDocuments()
+                    + " resident after idling");
+            service.undo("resume-42", shared);
+            service.undo("resume-42", shared);
+            shared.printResume(); // Candidate 42, Revision 2
+            System.out.println(service.residentDocuments() + " resident after touching one document");
+        }
     }
     
 }
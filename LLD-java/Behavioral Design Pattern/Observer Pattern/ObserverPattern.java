@@ -385,11 +385,81 @@ Let us now understand how we can solve this problem using the Observer Pattern.
 // using observer design pattern
 // Observer Interface
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 interface Subscriber {
     void update(String videoTitle);
+
+    // One message for several uploads; subscribers that can render a real digest override this
+    default void updateDigest(List<String> videoTitles) {
+        if (videoTitles.size() == 1) {
+            update(videoTitles.get(0));
+        } else {
+            update(videoTitles.size() + " new videos: " + String.join(", ", videoTitles));
+        }
+    }
 }
 
 /// concrete observer
@@ -404,6 +474,22 @@ class EmailSubscriber implements Subscriber {
     public void update(String videoTitle) {
         System.out.println("Email sent to " + email + " about new video: " + videoTitle);
     }
+
+    @Override
+    public void updateDigest(List<String> videoTitles) {
+        System.out.println("Digest email sent to " + email + " about " + videoTitles.size() + " new videos: " + videoTitles);
+    }
+
+    // value equality, so unsubscribe(new EmailSubscriber(email)) finds the registered one
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof EmailSubscriber other && email.equals(other.email);
+    }
+
+    @Override
+    public int hashCode() {
+        return email.hashCode();
+    }
 }
 
 class MobileAppSubscriber implements Subscriber {
@@ -417,6 +503,21 @@ class MobileAppSubscriber implements Subscriber {
     public void update(String videoTitle) {
         System.out.println("Push notification sent to " + username + " about new video: " + videoTitle);
     }
+
+    @Override
+    public void updateDigest(List<String> videoTitles) {
+        System.out.println("Push notification sent to " + username + " about " + videoTitles.size() + " new videos: " + videoTitles);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof MobileAppSubscriber other && username.equals(other.username);
+    }
+
+    @Override
+    public int hashCode() {
+        return username.hashCode();
+    }
 }
 
 // subject Interface
@@ -426,48 +527,4187 @@ interface YouTubeChannelSubject {
     void notifySubscribers(String videoTitle);
 }
 
+// Subject that also supports interest-filtered subscriptions
+interface FilteredYouTubeChannelSubject extends YouTubeChannelSubject {
+    void subscribe(Subscriber subscriber, SubscriptionFilter filter);
+    void notifySubscribers(VideoUpload upload);
+}
+
+// Dispatch strategy: decides on which thread(s) each subscriber's update() runs.
+// The returned future completes once every subscriber has been handed the event.
+interface NotificationDispatcher {
+    CompletableFuture<Void> dispatch(Iterable<Subscriber> subscribers, Consumer<Subscriber> delivery);
+}
+
+// Classic observer loop: every update() runs one after another on the uploader's thread
+class SequentialDispatcher implements NotificationDispatcher {
+    @Override
+    public CompletableFuture<Void> dispatch(Iterable<Subscriber> subscribers, Consumer<Subscriber> delivery) {
+        for (Subscriber subscriber : subscribers) {
+            delivery.accept(subscriber);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+}
+
+// Sends every update() out on its own virtual thread, so one slow subscriber
+// no longer holds back the ones behind it or the uploader.
+// At most maxConcurrency updates are in flight at once; the fan-out loop itself also
+// runs on a virtual thread, so dispatch() returns immediately however many subscribers there are.
+class VirtualThreadDispatcher implements NotificationDispatcher, AutoCloseable {
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore permits;
+
+    public VirtualThreadDispatcher(int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        }
+        this.permits = new Semaphore(maxConcurrency);
+    }
+
+    @Override
+    public CompletableFuture<Void> dispatch(Iterable<Subscriber> subscribers, Consumer<Subscriber> delivery) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        try {
+            executor.execute(() -> fanOut(subscribers, delivery, done));
+        } catch (RejectedExecutionException e) {
+            done.completeExceptionally(e); // closed
+        }
+        return done;
+    }
+
+    private void fanOut(Iterable<Subscriber> subscribers, Consumer<Subscriber> delivery,
+                        CompletableFuture<Void> done) {
+        AtomicInteger pending = new AtomicInteger(1); // the fan-out loop counts as one pending task
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        try {
+            for (Subscriber subscriber : subscribers) {
+                // blocks only this virtual thread, and caps the number of live threads as well
+                permits.acquireUninterruptibly();
+                pending.incrementAndGet();
+                try {
+                    executor.execute(() -> {
+                        try {
+                            delivery.accept(subscriber);
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        } finally {
+                            permits.release();
+                            finishOne(pending, failure, done);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // closed mid-fan-out: hand back what this delivery took and stop scheduling
+                    permits.release();
+                    pending.decrementAndGet();
+                    throw e;
+                }
+            }
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+        } finally {
+            finishOne(pending, failure, done);
+        }
+    }
+
+    private static void finishOne(AtomicInteger pending, AtomicReference<Throwable> failure,
+                                  CompletableFuture<Void> done) {
+        if (pending.decrementAndGet() == 0) {
+            Throwable t = failure.get();
+            if (t == null) {
+                done.complete(null);
+            } else {
+                done.completeExceptionally(t);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.close();
+    }
+}
+
+class Threads {
+    private Threads() {
+    }
+
+    // Like ExecutorService.close(): waits out an interrupt and re-asserts it afterwards, so
+    // close() stays usable in try-with-resources without a checked InterruptedException
+    static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+// Concurrent subscriber registry: an indexed slot array with tombstones.
+// Readers (the fan-out) never lock - they walk whichever slot array is current, and
+// subscribe/unsubscribe running at the same time can never throw ConcurrentModificationException.
+// Writers are serialized on a small lock and are O(1) amortized: subscribe fills a recycled
+// slot or appends, unsubscribe nulls its slot (a tombstone) and puts it on the free list.
+// Every registration is stamped with a version, so snapshot() is O(1) and a fan-out walking it
+// skips subscribers that joined after the upload, however long the walk takes.
+// When more than half the used slots are tombstones, a background thread compacts the array:
+// it copies the live entries without the lock, then replays the writes made meanwhile and
+// swaps the copy in, so the lock is only ever held for O(writes during the copy).
+class SubscriberRegistry implements Iterable<Subscriber> {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MIN_COMPACT_SIZE = 1024;
+
+    // One registration; the version orders it against snapshots
+    private static final class Entry {
+        final Subscriber subscriber;
+        final long addedAt;
+
+        Entry(Subscriber subscriber, long addedAt) {
+            this.subscriber = subscriber;
+            this.addedAt = addedAt;
+        }
+    }
+
+    // immutable view handed to readers: the slot array, how many leading slots are in use and
+    // the version they are current as of, published together so a reader can't pair one
+    // array with another write's version
+    private static final class Slots {
+        final AtomicReferenceArray<Entry> array;
+        final int used;
+        final long version;
+
+        Slots(AtomicReferenceArray<Entry> array, int used, long version) {
+            this.array = array;
+            this.used = used;
+            this.version = version;
+        }
+    }
+
+    // Writer-side state for one slot array. Compaction builds a fresh Index off the lock.
+    private static final class Index {
+        final Map<Subscriber, Integer> slotOf = new HashMap<>();
+        AtomicReferenceArray<Entry> array;
+        int used;
+        int[] freeSlots = new int[INITIAL_CAPACITY];
+        int freeCount;
+
+        Index(int capacity) {
+            array = new AtomicReferenceArray<>(capacity);
+        }
+
+        boolean add(Entry entry) {
+            if (slotOf.containsKey(entry.subscriber)) {
+                return false;
+            }
+            int slot;
+            if (freeCount > 0) {
+                slot = freeSlots[--freeCount];
+            } else {
+                slot = used;
+                if (slot == array.length()) {
+                    AtomicReferenceArray<Entry> grown = new AtomicReferenceArray<>(array.length() * 2);
+                    for (int i = 0; i < used; i++) {
+                        grown.set(i, array.get(i));
+                    }
+                    array = grown;
+                }
+                used++;
+            }
+            array.set(slot, entry);
+            slotOf.put(entry.subscriber, slot);
+            return true;
+        }
+
+        boolean remove(Subscriber subscriber) {
+            Integer slot = slotOf.remove(subscriber);
+            if (slot == null) {
+                return false;
+            }
+            array.set(slot, null);
+            if (freeCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+            }
+            freeSlots[freeCount++] = slot;
+            return true;
+        }
+    }
+
+    // A write made while a compaction was copying: exactly one of the two is set
+    private record Change(Entry added, Subscriber removed) {
+    }
+
+    private final ReentrantLock writeLock = new ReentrantLock(); // not synchronized: writers may be virtual threads
+    private Index index = new Index(INITIAL_CAPACITY);          // guarded by writeLock
+    private List<Change> compactionLog;                         // non-null while compacting, guarded by writeLock
+    private volatile Slots current = new Slots(index.array, 0, 0);
+    private long version;                                       // guarded by writeLock
+    private volatile int size;
+
+    public boolean add(Subscriber subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        writeLock.lock();
+        try {
+            Entry entry = new Entry(subscriber, version + 1);
+            if (!index.add(entry)) {
+                return false;
+            }
+            version = entry.addedAt;
+            logChange(new Change(entry, null));
+            publish();
+            size++;
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Bulk insert for cold starts: one lock acquisition and one version for the whole batch.
+    // Returns the subscribers that were not registered yet, each once.
+    public List<Subscriber> addAll(Collection<? extends Subscriber> batch) {
+        writeLock.lock();
+        try {
+            long stamp = version + 1;
+            List<Subscriber> added = new ArrayList<>();
+            for (Subscriber subscriber : batch) {
+                Entry entry = new Entry(Objects.requireNonNull(subscriber, "subscriber"), stamp);
+                if (index.add(entry)) {
+                    logChange(new Change(entry, null));
+                    added.add(subscriber);
+                    size++;
+                }
+            }
+            version = stamp;
+            publish();
+            return added;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean remove(Subscriber subscriber) {
+        writeLock.lock();
+        try {
+            if (!index.remove(subscriber)) {
+                return false;
+            }
+            logChange(new Change(null, subscriber));
+            size--;
+            if (compactionLog == null && index.used >= MIN_COMPACT_SIZE && index.freeCount > index.used / 2) {
+                compactionLog = new ArrayList<>();
+                Thread.ofVirtual().name("subscriber-registry-compactor").start(this::compact);
+            }
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean contains(Subscriber subscriber) {
+        writeLock.lock();
+        try {
+            return index.slotOf.containsKey(subscriber);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // The subscribers registered right now; later subscribes are not visible through it
+    public Snapshot snapshot() {
+        Slots slots = current;
+        return new Snapshot(slots, slots.version);
+    }
+
+    // Registrations as of one version. Versions only grow, so comparing a subscriber's
+    // registration version with an upload's snapshot version tells whether it saw that upload.
+    static final class Snapshot implements Iterable<Subscriber> {
+        private final Slots slots;
+        private final long version;
+
+        private Snapshot(Slots slots, long version) {
+            this.slots = slots;
+            this.version = version;
+        }
+
+        long version() {
+            return version;
+        }
+
+        // Visits every subscriber in the snapshot with the version it was registered at
+        void forEachEntry(ObjLongConsumer<Subscriber> action) {
+            for (int i = 0; i < slots.used; i++) {
+                Entry entry = slots.array.get(i);
+                if (entry != null && entry.addedAt <= version) {
+                    action.accept(entry.subscriber, entry.addedAt);
+                }
+            }
+        }
+
+        @Override
+        public Iterator<Subscriber> iterator() {
+            return SubscriberRegistry.iterator(slots, version);
+        }
+    }
+
+    private void logChange(Change change) {
+        if (compactionLog != null) {
+            compactionLog.add(change);
+        }
+    }
+
+    private void publish() {
+        if (current.array != index.array || current.used != index.used || current.version != version) {
+            current = new Slots(index.array, index.used, version);
+        }
+    }
+
+    // Packs live subscribers into a right-sized array. The copy runs without the lock; the
+    // writes it raced with are replayed onto it before it is swapped in. Readers still walking
+    // the old array finish on it undisturbed.
+    private void compact() {
+        Slots from = current;
+        Index packed = new Index(Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, size)) * 2));
+        for (int i = 0; i < from.used; i++) {
+            Entry entry = from.array.get(i);
+            if (entry != null) {
+                packed.add(entry); // a subscriber that moved slots mid-copy is taken once
+            }
+        }
+        writeLock.lock();
+        try {
+            for (Change change : compactionLog) {
+                if (change.added() != null) {
+                    packed.add(change.added());
+                } else {
+                    packed.remove(change.removed());
+                }
+            }
+            compactionLog = null;
+            index = packed;
+            publish();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Weakly consistent, lock-free iteration over the current slot array
+    @Override
+    public Iterator<Subscriber> iterator() {
+        Slots slots = current;
+        return iterator(slots, slots.version);
+    }
+
+    private static Iterator<Subscriber> iterator(Slots slots, long at) {
+        return new Iterator<>() {
+            private int cursor;
+            private Subscriber upcoming = fetch();
+
+            // reads each slot once, so a concurrent unsubscribe can't pull an element out from under hasNext()
+            private Subscriber fetch() {
+                while (cursor < slots.used) {
+                    Entry entry = slots.array.get(cursor++);
+                    if (entry != null && entry.addedAt <= at) {
+                        return entry.subscriber;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return upcoming != null;
+            }
+
+            @Override
+            public Subscriber next() {
+                if (upcoming == null) {
+                    throw new NoSuchElementException();
+                }
+                Subscriber subscriber = upcoming;
+                upcoming = fetch();
+                return subscriber;
+            }
+        };
+    }
+}
+
 // Concrete Subject
-class YouTubeChannel implements YouTubeChannelSubject {
-    private List<Subscriber> subscribers = new ArrayList<>();;
+class YouTubeChannel implements FilteredYouTubeChannelSubject {
+    private final SubscriberRegistry subscribers = new SubscriberRegistry();
+    private final InterestIndex filteredSubscribers = new InterestIndex();
     private String channelName;
+    private final FanOutMetrics metrics = new FanOutMetrics();
+    private final NotificationDispatcher dispatcher;
+    private volatile DigestBatcher digestBatcher; // null = every upload is delivered on its own
+    private volatile NotificationOutbox outbox;   // null = fan-out is not recorded
+    private volatile OutboxShard[] outboxShards;  // set together with outbox
+    private volatile ChannelEventLog eventLog;    // null = offline subscribers miss uploads
+    private final Map<Subscriber, Offline> offline = new ConcurrentHashMap<>();
+    private volatile Deduplication deduplication; // null = no duplicate suppression
 
     public YouTubeChannel(String channelName) {
+        this(channelName, new SequentialDispatcher());
+    }
+
+    public YouTubeChannel(String channelName, NotificationDispatcher dispatcher) {
         this.channelName = channelName;
+        this.dispatcher = dispatcher;
+    }
+
+    // One subscriber shard of the outbox: its members, the chain of first delivery attempts
+    // (so uploads reach a shard in seq order) and how far the shard has been fully delivered
+    private static final class OutboxShard {
+        final SubscriberRegistry members = new SubscriberRegistry();
+        CompletableFuture<?> tail = CompletableFuture.completedFuture(null); // guarded by the channel
+        private long delivered;                                    // every seq <= delivered reached all members
+        private final TreeSet<Long> deliveredAhead = new TreeSet<>(); // done, but above a seq still pending
+
+        OutboxShard(long delivered) {
+            this.delivered = delivered;
+        }
+
+        // Returns the new contiguous cursor, or -1 if an earlier seq is still pending
+        synchronized long markDelivered(long seq) {
+            if (seq != delivered + 1) {
+                if (seq > delivered) {
+                    deliveredAhead.add(seq);
+                }
+                return -1;
+            }
+            delivered = seq;
+            while (!deliveredAhead.isEmpty() && deliveredAhead.first() == delivered + 1) {
+                delivered = deliveredAhead.pollFirst();
+            }
+            return delivered;
+        }
+    }
+
+    private volatile Journal journal; // null = subscriptions are not journaled
+
+    // Keys the filter by a stable subscriber id, so one filter can be shared by every channel
+    // a subscriber follows and two distinct subscribers never suppress each other
+    private record Deduplication(DuplicateFilter filter, ToLongFunction<Subscriber> subscriberIds) {
+    }
+
+    private record Journal(SubscriberSnapshotWriter writer, SubscriberIdentity identity) {
+        void subscribed(Subscriber subscriber, SubscriptionFilter filter) {
+            try {
+                writer.subscribed(identity.idOf(subscriber), identity.typeOf(subscriber), filter);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot journal subscription", e);
+            }
+        }
+
+        void unsubscribed(Subscriber subscriber) {
+            try {
+                writer.unsubscribed(identity.idOf(subscriber));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot journal unsubscription", e);
+            }
+        }
+    }
+
+    // Where a disconnected subscriber stopped, and its filter if it had one
+    private record Offline(long cursor, InterestIndex.Interests interests) {
+    }
+
+    private static final long FIRST_RETRY_DELAY_MS = 100;
+    private static final long MAX_RETRY_DELAY_MS = 30_000;
+
+    public FanOutMetrics metrics() {
+        return metrics;
+    }
+
+    // Appends every later subscribe/unsubscribe to a snapshot journal, so the next start can
+    // bulk-load the registry with SubscriberSnapshot.loadInto instead of replaying subscribe calls
+    public void journalSubscriptions(SubscriberSnapshotWriter writer, SubscriberIdentity identity) {
+        this.journal = new Journal(writer, identity);
     }
 
+    // A subscriber is either plain or filtered: subscribing one way replaces the other
     @Override
     public void subscribe(Subscriber subscriber) {
-        subscribers.add(subscriber);
+        Journal log = journal;
+        if (log == null) {
+            addPlain(subscriber);
+            return;
+        }
+        synchronized (log.writer()) { // journal records land in the order the registry changed
+            if (addPlain(subscriber)) {
+                log.subscribed(subscriber, null);
+            }
+        }
+    }
+
+    // Bulk registration for cold starts (see SubscriberSnapshot)
+    public void subscribeAll(Collection<? extends Subscriber> batch) {
+        Journal log = journal;
+        if (log == null) {
+            addAllPlain(batch);
+            return;
+        }
+        synchronized (log.writer()) {
+            for (Subscriber subscriber : addAllPlain(batch)) {
+                log.subscribed(subscriber, null);
+            }
+        }
+    }
+
+    // Subscriptions SubscriberSnapshot.loadInto read back from `source`. They are journaled only
+    // when this channel journals to another file: writing them into the journal they were just
+    // loaded from would append a second copy of every record.
+    void restore(Path source, List<Subscriber> unfiltered, Map<Subscriber, SubscriptionFilter> filtered) {
+        Journal log = journal;
+        if (log != null && !log.writer().writesTo(source)) {
+            filtered.forEach(this::subscribe);
+            subscribeAll(unfiltered);
+            return;
+        }
+        filtered.forEach(this::addFiltered);
+        addAllPlain(unfiltered);
+    }
+
+    // Only uploads that pass the filter reach this subscriber
+    @Override
+    public void subscribe(Subscriber subscriber, SubscriptionFilter filter) {
+        Journal log = journal;
+        if (log == null) {
+            addFiltered(subscriber, filter);
+            return;
+        }
+        synchronized (log.writer()) {
+            addFiltered(subscriber, filter);
+            log.subscribed(subscriber, filter);
+        }
     }
 
     @Override
     public void unsubscribe(Subscriber subscriber) {
-        subscribers.remove(subscriber);
+        Journal log = journal;
+        if (log == null) {
+            removeEverywhere(subscriber);
+            return;
+        }
+        synchronized (log.writer()) {
+            if (removeEverywhere(subscriber)) {
+                log.unsubscribed(subscriber);
+            }
+        }
+    }
+
+    private boolean addPlain(Subscriber subscriber) {
+        boolean wasFiltered = filteredSubscribers.remove(subscriber);
+        if (subscribers.add(subscriber)) {
+            joinShard(subscriber);
+            return true;
+        }
+        return wasFiltered;
+    }
+
+    // Returns the subscribers the batch registered, skipping ones already subscribed plain
+    private List<Subscriber> addAllPlain(Collection<? extends Subscriber> batch) {
+        batch.forEach(filteredSubscribers::remove); // subscribing plain replaces a filter, as in addPlain
+        List<Subscriber> added = subscribers.addAll(batch);
+        if (outboxShards != null) {
+            added.forEach(this::joinShard);
+        }
+        return added;
+    }
+
+    private void addFiltered(Subscriber subscriber, SubscriptionFilter filter) {
+        if (subscribers.remove(subscriber)) {
+            leaveShard(subscriber);
+        }
+        filteredSubscribers.add(subscriber, filter);
+    }
+
+    private boolean removeEverywhere(Subscriber subscriber) {
+        boolean wasPlain = subscribers.remove(subscriber);
+        if (wasPlain) {
+            leaveShard(subscriber);
+        }
+        return filteredSubscribers.remove(subscriber) || wasPlain;
+    }
+
+    // Keeps the outbox shards' membership in step with the registry, so a durable fan-out
+    // walks each shard's own members instead of scanning every subscriber per shard
+    private void joinShard(Subscriber subscriber) {
+        OutboxShard[] shards = outboxShards;
+        if (shards != null) {
+            shards[outbox.shardOf(subscriber)].members.add(subscriber);
+        }
+    }
+
+    private void leaveShard(Subscriber subscriber) {
+        OutboxShard[] shards = outboxShards;
+        if (shards != null) {
+            shards[outbox.shardOf(subscriber)].members.remove(subscriber);
+        }
     }
 
     @Override
     public void notifySubscribers(String videoTitle) {
+        notifySubscribers(VideoUpload.of(videoTitle));
+    }
+
+    @Override
+    public void notifySubscribers(VideoUpload upload) {
+        fanOut(upload);
+    }
+
+    // Returns a handle that completes once every subscriber has been notified
+    public CompletableFuture<Void> uploadNewVideo(String videoTitle) {
+        return uploadNewVideo(VideoUpload.of(videoTitle));
+    }
+
+    public CompletableFuture<Void> uploadNewVideo(VideoUpload upload) {
+        System.out.println("Uploading: " + upload.title() + " to channel: " + channelName);
+        return publish(upload);
+    }
+
+    // uploadNewVideo without the console line, for callers that log elsewhere (or not at all)
+    public CompletableFuture<Void> publish(VideoUpload upload) {
+        return fanOut(upload);
+    }
+
+    // Keeps recent uploads so subscribers that go offline can catch up on reconnect
+    public void enableCatchUp(ChannelEventLog log) {
+        this.eventLog = log;
+    }
+
+    // Takes the subscriber out of fan-out and remembers how far it got. Online subscribers need
+    // no per-delivery cursor bookkeeping: their cursor is implicitly the head of the log.
+    public void disconnect(Subscriber subscriber) {
+        ChannelEventLog log = requireEventLog();
+        if (subscribers.remove(subscriber)) {
+            leaveShard(subscriber);
+            offline.put(subscriber, new Offline(log.lastSeq(), null));
+            return;
+        }
+        InterestIndex.Interests interests = filteredSubscribers.interestsOf(subscriber);
+        if (interests != null && filteredSubscribers.remove(subscriber)) {
+            offline.put(subscriber, new Offline(log.lastSeq(), interests));
+        }
+    }
+
+    // Re-joins fan-out first, then delivers everything after the cursor as one digest
+    // (only the uploads its filter passes); an upload racing with the reconnect may arrive
+    // twice but is never lost. A subscriber that was never disconnected is left alone: new
+    // subscriptions go through subscribe(), which journals them.
+    public void reconnect(Subscriber subscriber) {
+        ChannelEventLog log = requireEventLog();
+        Offline state = offline.remove(subscriber);
+        if (state == null) {
+            return;
+        }
+        if (state.interests() == null) {
+            addPlain(subscriber); // still subscribed as far as the journal is concerned
+        } else {
+            filteredSubscribers.add(subscriber, state.interests());
+        }
+        List<String> missed = new ArrayList<>();
+        for (VideoUpload upload : log.readAfter(state.cursor())) {
+            if (state.interests() == null || state.interests().matches(upload)) {
+                missed.add(upload.title());
+            }
+        }
+        if (!missed.isEmpty()) {
+            deliverDigest(subscriber, missed);
+        }
+    }
+
+    private ChannelEventLog requireEventLog() {
+        ChannelEventLog log = eventLog;
+        if (log == null) {
+            throw new IllegalStateException("Catch-up is not enabled for channel " + channelName);
+        }
+        return log;
+    }
+
+    // Unfiltered subscribers come from the registry; filtered ones are looked up in the inverted
+    // index, so only matching subscribers are touched. Both then share one delivery path
+    // (outbox, digest or plain dispatch).
+    // The fan-out is recorded once per upload, whichever path it took.
+    private CompletableFuture<Void> fanOut(VideoUpload upload) {
+        long start = System.nanoTime();
+        AtomicInteger reached = new AtomicInteger();
+        CompletableFuture<Void> done;
+        try {
+            done = deliver(upload, reached);
+        } catch (RuntimeException e) {
+            // a synchronous dispatcher lets the first failure escape; still count the partial fan-out
+            metrics.recordFanOut(reached.get(), System.nanoTime() - start);
+            throw e;
+        }
+        done.whenComplete((ignored, failure) -> metrics.recordFanOut(reached.get(), System.nanoTime() - start));
+        return done;
+    }
+
+    private CompletableFuture<Void> deliver(VideoUpload upload, AtomicInteger reached) {
+        ChannelEventLog log = eventLog;
+        NotificationOutbox durableLog = outbox;
+        if (log != null && !log.isBackedBy(durableLog)) {
+            log.append(upload);
+        }
+        List<Subscriber> matches = filteredSubscribers.match(upload);
+        if (durableLog != null) {
+            return fanOutDurably(durableLog, upload, matches, reached);
+        }
+        // the snapshot is O(1) and lock-free; it keeps subscribers who join mid-delivery out of this upload
+        SubscriberRegistry.Snapshot audience = subscribers.snapshot();
+        DigestBatcher batcher = digestBatcher;
+        if (batcher != null) {
+            return batcher.add(audience, matches, upload.title(), reached);
+        }
+        return dispatcher.dispatch(concat(audience, matches), metrics.timed(deliveryOf(upload.title()), reached));
+    }
+
+    static Iterable<Subscriber> concat(Iterable<Subscriber> first, List<Subscriber> second) {
+        if (second.isEmpty()) {
+            return first;
+        }
+        return () -> Stream.concat(StreamSupport.stream(first.spliterator(), false), second.stream()).iterator();
+    }
+
+    // Uploads within the window (or until maxVideos pile up) reach each subscriber as one digest update.
+    // Enabling again replaces the settings; disableDigestBatching() flushes the last open window.
+    public synchronized void enableDigestBatching(Duration window, int maxVideos) {
+        if (outbox != null) {
+            throw new IllegalStateException("Digest batching cannot be combined with a notification outbox");
+        }
+        DigestBatcher previous = digestBatcher;
+        digestBatcher = new DigestBatcher(dispatcher, metrics, this::deliverDigest, window, maxVideos);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    // Delivers what is still buffered and goes back to one notification per upload
+    public synchronized void disableDigestBatching() {
+        DigestBatcher previous = digestBatcher;
+        digestBatcher = null;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    // Every upload is written to the outbox before fan-out, and each subscriber shard's cursor
+    // moves forward as that shard is delivered. Call recoverFromOutbox() after re-subscribing on restart.
+    public synchronized void attachOutbox(NotificationOutbox outbox) {
+        if (digestBatcher != null) {
+            throw new IllegalStateException("A notification outbox cannot be combined with digest batching");
+        }
+        long[] cursors = outbox.cursors();
+        OutboxShard[] shards = new OutboxShard[outbox.shardCount()];
+        for (int shard = 0; shard < shards.length; shard++) {
+            shards[shard] = new OutboxShard(cursors[shard]);
+        }
+        this.outbox = outbox;
+        this.outboxShards = shards;
+        // subscribes racing with this copy add themselves through joinShard
         for (Subscriber subscriber : subscribers) {
-            subscriber.update(videoTitle);
+            shards[outbox.shardOf(subscriber)].members.add(subscriber);
         }
     }
 
-    public void uploadNewVideo(String videoTitle) {
-        System.out.println("Uploading: " + videoTitle + " to channel: " + channelName);
-        notifySubscribers(videoTitle);
+    // Re-delivers every recorded upload that some shard's cursor has not passed yet
+    public void recoverFromOutbox() {
+        NotificationOutbox log = outbox;
+        long[] cursors = log.cursors();
+        long from = Arrays.stream(cursors).min().orElse(0);
+        List<CompletableFuture<?>> deliveries = new ArrayList<>();
+        log.replay(from, (seq, upload) -> {
+            Consumer<Subscriber> delivery = metrics.timed(deliveryOf(upload.title()), new AtomicInteger());
+            List<List<Subscriber>> matches = matchesByShard(log, filteredSubscribers.match(upload));
+            synchronized (this) {
+                for (int shard = 0; shard < cursors.length; shard++) {
+                    if (cursors[shard] < seq) {
+                        deliveries.add(deliverShard(log, shard, seq, delivery, matches.get(shard),
+                                                    CompletableFuture.completedFuture(null)));
+                    }
+                }
+            }
+        });
+        CompletableFuture.allOf(deliveries.toArray(new CompletableFuture<?>[0])).join();
     }
-}
 
+    private CompletableFuture<Void> fanOutDurably(NotificationOutbox log, VideoUpload upload,
+                                                  List<Subscriber> filteredMatches, AtomicInteger reached) {
+        Consumer<Subscriber> delivery = metrics.timed(deliveryOf(upload.title()), reached);
+        CompletableFuture<Void> recorded = new CompletableFuture<>();
+        CompletableFuture<?>[] deliveries = new CompletableFuture<?>[log.shardCount()];
+        List<List<Subscriber>> matches = matchesByShard(log, filteredMatches);
+        long seq;
+        synchronized (this) {
+            // sequence numbers and per-shard chains are assigned in the same order
+            seq = log.write(upload);
+            ChannelEventLog catchUp = eventLog;
+            if (catchUp != null && catchUp.isBackedBy(log)) {
+                catchUp.remember(seq, upload); // one write serves both the outbox and catch-up
+            }
+            for (int shard = 0; shard < deliveries.length; shard++) {
+                deliveries[shard] = deliverShard(log, shard, seq, delivery, matches.get(shard), recorded);
+            }
+        }
+        try {
+            log.awaitDurable(seq); // group commit happens outside the channel lock
+            recorded.complete(null);
+        } catch (RuntimeException e) {
+            recorded.completeExceptionally(e);
+            throw e;
+        }
+        return CompletableFuture.allOf(deliveries);
+    }
 
-public class ObserverPattern {
-    public static void main(String[] args) {
-        System.out.println("Observer Pattern Example");
-        YouTubeChannel omChannelSubject = new YouTubeChannel("OM Programming");
-        omChannelSubject.subscribe(new EmailSubscriber("subscriber1@example.com"));
-        omChannelSubject.subscribe(new MobileAppSubscriber("subscriber2"));
-        omChannelSubject.subscribe(new EmailSubscriber("subscriber3@example.com"));
+    // Filtered subscribers aren't shard members; their matches for one upload join the shard's delivery
+    private static List<List<Subscriber>> matchesByShard(NotificationOutbox log, List<Subscriber> matches) {
+        List<List<Subscriber>> byShard = new ArrayList<>(Collections.nCopies(log.shardCount(), List.of()));
+        for (Subscriber subscriber : matches) {
+            int shard = log.shardOf(subscriber);
+            if (byShard.get(shard).isEmpty()) {
+                byShard.set(shard, new ArrayList<>());
+            }
+            byShard.get(shard).add(subscriber);
+        }
+        return byShard;
+    }
 
-        omChannelSubject.uploadNewVideo("Observer Design Pattern in Java");
+    // Uploads are chained per shard, so first attempts reach a shard in seq order. The returned
+    // future fails if some member's first attempt failed; those members are retried in the
+    // background and the shard's cursor stays below seq until every one of them has it.
+    private CompletableFuture<Void> deliverShard(NotificationOutbox log, int shard, long seq,
+                                                 Consumer<Subscriber> delivery, List<Subscriber> filteredMatches,
+                                                 CompletableFuture<Void> recorded) {
+        OutboxShard state = outboxShards[shard];
+        Iterable<Subscriber> members = concat(state.members.snapshot(), filteredMatches);
+        CompletableFuture<Void> firstAttempt = state.tail
+                .handle((ignored, failure) -> null) // a failed upload keeps its own cursor back, not the queue
+                .thenCompose(ignored -> recorded)
+                .thenCompose(ignored -> attemptShard(log, shard, seq, members, delivery, 0));
+        state.tail = firstAttempt;
+        return firstAttempt;
+    }
+
+    private CompletableFuture<Void> attemptShard(NotificationOutbox log, int shard, long seq,
+                                                 Iterable<Subscriber> members, Consumer<Subscriber> delivery,
+                                                 int attempt) {
+        Collection<Subscriber> failed = new ConcurrentLinkedQueue<>();
+        AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+        return dispatcher.dispatch(members, subscriber -> {
+            try {
+                delivery.accept(subscriber);
+            } catch (RuntimeException e) {
+                failed.add(subscriber);
+                firstFailure.compareAndSet(null, e);
+            }
+        }).handle((ignored, dispatchFailure) -> {
+            if (dispatchFailure == null && failed.isEmpty()) {
+                long cursor = outboxShards[shard].markDelivered(seq);
+                if (cursor >= 0) {
+                    log.advanceCursor(shard, cursor);
+                }
+                return null;
+            }
+            // the dispatcher itself failed: we can't tell who was reached, so retry the whole shard
+            Iterable<Subscriber> retry = dispatchFailure != null ? members : List.copyOf(failed);
+            long delay = Math.min(MAX_RETRY_DELAY_MS, FIRST_RETRY_DELAY_MS << Math.min(attempt, 16));
+            CompletableFuture.runAsync(() -> attemptShard(log, shard, seq, retry, delivery, attempt + 1),
+                                       CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS));
+            Throwable failure = dispatchFailure != null ? dispatchFailure : firstFailure.get();
+            throw failure instanceof CompletionException completion ? completion : new CompletionException(failure);
+        });
+    }
+
+    // Suppresses repeat notifications of the same video to the same subscriber (cross-posts,
+    // re-uploads under the same title, catch-up after a reconnect) for as long as the filter
+    // remembers them. subscriberIds must give each distinct subscriber its own stable id.
+    public void enableDeduplication(DuplicateFilter filter, ToLongFunction<Subscriber> subscriberIds) {
+        this.deduplication = new Deduplication(filter, subscriberIds);
+    }
+
+    // One lambda per upload; the per-subscriber check itself allocates nothing
+    private Consumer<Subscriber> deliveryOf(String videoTitle) {
+        Deduplication dedup = deduplication;
+        if (dedup == null) {
+            return subscriber -> subscriber.update(videoTitle);
+        }
+        long videoId = VideoUpload.idOf(videoTitle);
+        return subscriber -> {
+            long key = dedup.subscriberIds().applyAsLong(subscriber);
+            if (!dedup.filter().mightContain(key, videoId)) {
+                subscriber.update(videoTitle);
+                dedup.filter().add(key, videoId);
+            }
+        };
+    }
+
+    // Digests (batched windows and reconnect catch-up) drop the titles the subscriber already got
+    private void deliverDigest(Subscriber subscriber, List<String> videoTitles) {
+        Deduplication dedup = deduplication;
+        if (dedup == null) {
+            subscriber.updateDigest(videoTitles);
+            return;
+        }
+        long key = dedup.subscriberIds().applyAsLong(subscriber);
+        List<String> unseen = new ArrayList<>(videoTitles.size());
+        for (String title : videoTitles) {
+            if (!dedup.filter().mightContain(key, VideoUpload.idOf(title))) {
+                unseen.add(title);
+            }
+        }
+        if (unseen.isEmpty()) {
+            return;
+        }
+        subscriber.updateDigest(unseen);
+        for (String title : unseen) {
+            dedup.filter().add(key, VideoUpload.idOf(title));
+        }
+    }
+}
+
+// Batching stage between a channel and its subscribers. Every subscriber of a channel sees the
+// same uploads, so buffering once per channel merges events per subscriber at O(1) cost per upload.
+// A window opens with the first upload and closes after `window` or `maxVideos` uploads,
+// whichever comes first; then each subscriber gets a single updateDigest() call.
+// Subscribers who joined mid-window only get the uploads made after they joined, and filtered
+// subscribers only the uploads their filter passed.
+class DigestBatcher implements AutoCloseable {
+    private final NotificationDispatcher downstream;
+    private final FanOutMetrics metrics;
+    private final BiConsumer<Subscriber, List<String>> digestDelivery;
+    private final Duration window;
+    private final int maxVideos;
+    private final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("digest-timer").factory());
+
+    // the open window, guarded by this
+    private List<String> pending = new ArrayList<>();
+    private long[] pendingVersions = new long[8];  // registry version each pending upload was made at
+    private CompletableFuture<Void> pendingDone = new CompletableFuture<>();
+    private SubscriberRegistry.Snapshot pendingSubscribers;
+    private Map<Subscriber, List<String>> pendingFiltered = new HashMap<>();
+    private List<AtomicInteger> pendingReached = new ArrayList<>(); // each upload's fan-out counter
+    private ScheduledFuture<?> windowTimer;
+    private long generation; // bumped per window, so a timer that fires late can't flush the next one
+    private boolean closed;
 
+    // digestDelivery hands one digest to one subscriber (usually updateDigest behind the channel's
+    // duplicate suppression)
+    public DigestBatcher(NotificationDispatcher downstream, FanOutMetrics metrics,
+                         BiConsumer<Subscriber, List<String>> digestDelivery, Duration window, int maxVideos) {
+        if (maxVideos <= 0) {
+            throw new IllegalArgumentException("maxVideos must be positive: " + maxVideos);
+        }
+        this.downstream = downstream;
+        this.metrics = metrics;
+        this.digestDelivery = digestDelivery;
+        this.window = window;
+        this.maxVideos = maxVideos;
+    }
+
+    // Returns a handle that completes once the digest containing this upload has been delivered
+    // `reached` is the upload's fan-out counter; it is credited with the digest deliveries that carried it
+    public CompletableFuture<Void> add(SubscriberRegistry.Snapshot subscribers, List<Subscriber> filteredMatches,
+                                       String videoTitle, AtomicInteger reached) {
+        CompletableFuture<Void> done;
+        boolean full;
+        synchronized (this) {
+            if (closed) {
+                done = null;
+                full = false;
+            } else {
+                done = enqueue(subscribers, filteredMatches, videoTitle, reached);
+                full = pending.size() >= maxVideos;
+            }
+        }
+        if (done == null) {
+            // batching was switched off while this upload was on its way: deliver it on its own
+            List<String> single = List.of(videoTitle);
+            return downstream.dispatch(YouTubeChannel.concat(subscribers, filteredMatches),
+                                       metrics.timed(subscriber -> digestDelivery.accept(subscriber, single), reached));
+        }
+        if (full) {
+            flush();
+        }
+        return done;
+    }
+
+    // caller holds the lock on this
+    private CompletableFuture<Void> enqueue(SubscriberRegistry.Snapshot subscribers, List<Subscriber> filteredMatches,
+                                            String videoTitle, AtomicInteger reached) {
+        if (pending.isEmpty()) {
+            long opened = generation;
+            windowTimer = timer.schedule(() -> flushWindow(opened), window.toNanos(), TimeUnit.NANOSECONDS);
+        }
+        if (pending.size() == pendingVersions.length) {
+            pendingVersions = Arrays.copyOf(pendingVersions, pendingVersions.length * 2);
+        }
+        // concurrent uploads may snapshot out of order; keep the versions sorted for the suffix lookup
+        long previous = pending.isEmpty() ? Long.MIN_VALUE : pendingVersions[pending.size() - 1];
+        pendingVersions[pending.size()] = Math.max(previous, subscribers.version());
+        pending.add(videoTitle);
+        pendingReached.add(reached);
+        pendingSubscribers = subscribers;
+        for (Subscriber subscriber : filteredMatches) {
+            pendingFiltered.computeIfAbsent(subscriber, s -> new ArrayList<>()).add(videoTitle);
+        }
+        return pendingDone;
+    }
+
+    public void flush() {
+        flushWindow(-1);
+    }
+
+    private void flushWindow(long expectedGeneration) {
+        List<String> batch;
+        long[] versions;
+        CompletableFuture<Void> done;
+        SubscriberRegistry.Snapshot subscribers;
+        Map<Subscriber, List<String>> filtered;
+        List<AtomicInteger> uploadCounters;
+        synchronized (this) {
+            if (pending.isEmpty() || (expectedGeneration >= 0 && expectedGeneration != generation)) {
+                return;
+            }
+            batch = List.copyOf(pending);
+            versions = pendingVersions;
+            done = pendingDone;
+            subscribers = pendingSubscribers;
+            filtered = pendingFiltered;
+            uploadCounters = pendingReached;
+            pending = new ArrayList<>();
+            pendingReached = new ArrayList<>();
+            pendingVersions = new long[8];
+            pendingDone = new CompletableFuture<>();
+            pendingSubscribers = null;
+            pendingFiltered = new HashMap<>();
+            generation++;
+            windowTimer.cancel(false);
+        }
+        Consumer<Subscriber> plain = digestOf(batch, versions, subscribers);
+        Consumer<Subscriber> delivery = filtered.isEmpty() ? plain : subscriber -> {
+            List<String> matched = filtered.get(subscriber);
+            if (matched != null) {
+                digestDelivery.accept(subscriber, matched);
+            } else {
+                plain.accept(subscriber);
+            }
+        };
+        AtomicInteger reached = new AtomicInteger();
+        CompletableFuture<Void> dispatched;
+        try {
+            dispatched = downstream.dispatch(YouTubeChannel.concat(subscribers, List.copyOf(filtered.keySet())),
+                                             metrics.timed(delivery, reached));
+        } catch (RuntimeException e) {
+            // a synchronous dispatcher throws on the first failure; the window's callers still hear about it
+            dispatched = CompletableFuture.failedFuture(e);
+        }
+        dispatched.whenComplete((ignored, failure) -> {
+            uploadCounters.forEach(counter -> counter.addAndGet(reached.get()));
+            if (failure == null) {
+                done.complete(null);
+            } else {
+                done.completeExceptionally(failure);
+            }
+        });
+    }
+
+    // Everyone registered before the window opened gets the whole batch; the few who joined
+    // later get the suffix of uploads made after they joined (found once, before dispatch)
+    private Consumer<Subscriber> digestOf(List<String> batch, long[] versions,
+                                                 SubscriberRegistry.Snapshot subscribers) {
+        Map<Subscriber, List<String>> lateJoiners = new HashMap<>();
+        subscribers.forEachEntry((subscriber, addedAt) -> {
+            if (addedAt > versions[0]) {
+                int from = 1;
+                while (from < batch.size() && versions[from] < addedAt) {
+                    from++;
+                }
+                lateJoiners.put(subscriber, batch.subList(from, batch.size()));
+            }
+        });
+        if (lateJoiners.isEmpty()) {
+            return subscriber -> digestDelivery.accept(subscriber, batch);
+        }
+        return subscriber -> {
+            List<String> digest = lateJoiners.getOrDefault(subscriber, batch);
+            if (!digest.isEmpty()) {
+                digestDelivery.accept(subscriber, digest);
+            }
+        };
+    }
+
+    // Flushes the open window; uploads that arrive afterwards are delivered one by one
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        flush();
+        timer.shutdown();
+    }
+}
+
+
+// ===================== Priority delivery lanes =====================
+// Push notifications are time-sensitive, email can lag. Each subscriber class is routed to a lane
+// with its own bounded queue, worker budget and latency SLO; a fixed pool of workers picks lanes by
+// smooth weighted round-robin, so under load the heavy lanes get their weighted share of the workers
+// and the low-priority lanes soak up the backlog instead of delaying the high-priority ones.
+// Deliveries travel in chunks: a dispatch enqueues one chunk per STAGE_SIZE subscribers of a lane
+// and a worker claims a slice of a chunk at a time, so the shared lock is taken once per slice
+// rather than once per delivery, and nothing is allocated per delivery.
+// Backpressure is per lane: a chunk for a full lane is held back by its dispatch while the other
+// lanes' chunks keep flowing, and the dispatch only waits for lane space once everything else it
+// had to deliver is queued, so a full email lane never holds up push deliveries.
+class PriorityLaneDispatcher implements NotificationDispatcher, AutoCloseable {
+    private static final int STAGE_SIZE = 256; // deliveries per queued chunk
+    private static final int MAX_CLAIM = 16;   // deliveries a worker takes per visit to the lock
+    private static final int QUEUED = 0;       // submit() outcomes
+    private static final int FULL = 1;
+    private static final int CLOSED = 2;
+
+    // weight = share of the worker pool under contention, maxWorkers = cap on concurrent deliveries,
+    // capacity = queued deliveries beyond which the lane's chunks wait in their dispatch.
+    // A subscriber goes to the lane listing its class, a superclass or an interface it implements;
+    // a MailboxSubscriber is routed by the subscriber it wraps.
+    record LaneSpec(String name, int weight, int maxWorkers, int capacity, Duration slo,
+                    Set<Class<? extends Subscriber>> types) {
+    }
+
+    private static final class Lane {
+        final LaneSpec spec;
+        final int index;
+        final ArrayDeque<Chunk> chunks = new ArrayDeque<>(); // guarded by the dispatcher lock
+        final LatencyHistogram queueWaitNanos = new LatencyHistogram();
+        final LongAdder sloBreaches = new LongAdder();
+        int queued;        // unclaimed deliveries, guarded by the dispatcher lock
+        int running;       // guarded by the dispatcher lock
+        int currentWeight; // smooth weighted round-robin state, guarded by the dispatcher lock
+
+        Lane(LaneSpec spec, int index) {
+            this.spec = spec;
+            this.index = index;
+        }
+    }
+
+    // Completion state of one dispatch() call, shared by all of its chunks
+    private static final class Tracker {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final AtomicInteger pending = new AtomicInteger(1); // the enqueue loop counts as one
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        void fail(Throwable t) {
+            failure.compareAndSet(null, t);
+        }
+
+        void finish(int deliveries) {
+            if (pending.addAndGet(-deliveries) == 0) {
+                Throwable t = failure.get();
+                if (t == null) {
+                    done.complete(null);
+                } else {
+                    done.completeExceptionally(t);
+                }
+            }
+        }
+    }
+
+    // Up to STAGE_SIZE subscribers of one lane from one dispatch
+    private static final class Chunk {
+        final Subscriber[] subscribers = new Subscriber[STAGE_SIZE];
+        final Consumer<Subscriber> delivery;
+        final Tracker tracker;
+        int size;
+        int next;          // first unclaimed subscriber, guarded by the dispatcher lock
+        long enqueuedAt;
+        Chunk held;        // next chunk its dispatch is holding back for the same lane
+
+        Chunk(Consumer<Subscriber> delivery, Tracker tracker) {
+            this.delivery = delivery;
+            this.tracker = tracker;
+        }
+    }
+
+    private final List<Lane> lanes = new ArrayList<>();
+    private final Map<Class<?>, Lane> laneByType = new HashMap<>();
+    private final Map<Class<?>, Lane> laneCache = new ConcurrentHashMap<>(); // concrete class -> resolved lane
+    private final Lane defaultLane;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private final Condition spaceAvailable = lock.newCondition();
+    private final List<Thread> workers = new ArrayList<>();
+    private final int totalWeight;
+    private boolean closed; // guarded by lock
+
+    // Subscribers whose type is not listed in any lane go to the last lane
+    public PriorityLaneDispatcher(int workerCount, List<LaneSpec> specs) {
+        if (specs.isEmpty()) {
+            throw new IllegalArgumentException("At least one lane is required");
+        }
+        int weights = 0;
+        for (LaneSpec spec : specs) {
+            if (spec.weight() <= 0 || spec.maxWorkers() <= 0 || spec.capacity() <= 0) {
+                throw new IllegalArgumentException("Lane " + spec.name() + " needs a positive weight, worker budget and capacity");
+            }
+            Lane lane = new Lane(spec, lanes.size());
+            lanes.add(lane);
+            spec.types().forEach(type -> laneByType.put(type, lane));
+            weights += spec.weight();
+        }
+        this.totalWeight = weights;
+        this.defaultLane = lanes.get(lanes.size() - 1);
+        for (int i = 0; i < workerCount; i++) {
+            workers.add(Thread.ofPlatform().daemon().name("lane-worker-" + i).start(this::work));
+        }
+    }
+
+    // Returns once every delivery is queued. A lane at capacity only holds back its own chunks:
+    // they wait in this dispatch while the other lanes' chunks are queued, and the call blocks
+    // for lane space only after that. If the dispatcher closes meanwhile, the deliveries not yet
+    // queued are skipped and the returned future fails with RejectedExecutionException.
+    @Override
+    public CompletableFuture<Void> dispatch(Iterable<Subscriber> subscribers, Consumer<Subscriber> delivery) {
+        Tracker tracker = new Tracker();
+        Chunk[] staging = new Chunk[lanes.size()];
+        Chunk[] heldFirst = new Chunk[lanes.size()]; // per lane, the chunks waiting for space, in order
+        Chunk[] heldLast = new Chunk[lanes.size()];
+        boolean accepting = true;
+        for (Subscriber subscriber : subscribers) {
+            if (!accepting) {
+                break;
+            }
+            int laneIndex = laneOf(subscriber).index;
+            Chunk chunk = staging[laneIndex];
+            if (chunk == null) {
+                chunk = staging[laneIndex] = new Chunk(delivery, tracker);
+            }
+            chunk.subscribers[chunk.size++] = subscriber;
+            if (chunk.size == STAGE_SIZE) {
+                staging[laneIndex] = null;
+                accepting = offer(laneIndex, chunk, heldFirst, heldLast);
+            }
+        }
+        for (int i = 0; i < staging.length && accepting; i++) {
+            if (staging[i] != null) {
+                accepting = offer(i, staging[i], heldFirst, heldLast);
+            }
+        }
+        // everything that fit is queued; only now wait for the lanes that were full
+        for (int i = 0; i < heldFirst.length && accepting; i++) {
+            while (heldFirst[i] != null && accepting) {
+                Chunk chunk = heldFirst[i];
+                heldFirst[i] = chunk.held;
+                chunk.held = null;
+                accepting = submit(lanes.get(i), chunk, true) == QUEUED;
+            }
+        }
+        if (!accepting) {
+            tracker.fail(new RejectedExecutionException("Dispatcher is closed"));
+        }
+        tracker.finish(1);
+        return tracker.done;
+    }
+
+    // Queues the chunk unless its lane is full or already has chunks held back, in which case it
+    // joins them. False if the dispatcher is closed.
+    private boolean offer(int laneIndex, Chunk chunk, Chunk[] heldFirst, Chunk[] heldLast) {
+        Lane lane = lanes.get(laneIndex);
+        // held chunks go first, so a lane's chunks are queued in the order they were staged
+        while (heldFirst[laneIndex] != null) {
+            int result = submit(lane, heldFirst[laneIndex], false);
+            if (result == CLOSED) {
+                return false;
+            }
+            if (result == FULL) {
+                heldLast[laneIndex].held = chunk;
+                heldLast[laneIndex] = chunk;
+                return true;
+            }
+            Chunk queued = heldFirst[laneIndex];
+            heldFirst[laneIndex] = queued.held;
+            queued.held = null;
+        }
+        int result = submit(lane, chunk, false);
+        if (result == FULL) {
+            heldFirst[laneIndex] = heldLast[laneIndex] = chunk;
+        }
+        return result != CLOSED;
+    }
+
+    // With `wait`, blocks until the lane has room; without, reports FULL instead. The chunk is
+    // dropped when the dispatcher is closed.
+    private int submit(Lane lane, Chunk chunk, boolean wait) {
+        lock.lock();
+        try {
+            // a chunk always fits into an empty lane, so capacities below STAGE_SIZE cannot deadlock
+            while (!closed && lane.queued > 0 && lane.queued + chunk.size > lane.spec.capacity()) {
+                if (!wait) {
+                    return FULL;
+                }
+                spaceAvailable.awaitUninterruptibly();
+            }
+            if (closed) {
+                return CLOSED;
+            }
+            chunk.tracker.pending.addAndGet(chunk.size);
+            chunk.enqueuedAt = System.nanoTime();
+            lane.chunks.addLast(chunk);
+            lane.queued += chunk.size;
+            workAvailable.signal();
+            return QUEUED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Lane laneOf(Subscriber subscriber) {
+        while (subscriber instanceof MailboxSubscriber mailbox) {
+            subscriber = mailbox.delegate();
+        }
+        return laneCache.computeIfAbsent(subscriber.getClass(), this::resolveLane);
+    }
+
+    // The first listed type found walking up the superclasses, then their interfaces breadth-first
+    private Lane resolveLane(Class<?> type) {
+        ArrayDeque<Class<?>> interfaces = new ArrayDeque<>();
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            Lane lane = laneByType.get(c);
+            if (lane != null) {
+                return lane;
+            }
+            interfaces.addAll(Arrays.asList(c.getInterfaces()));
+        }
+        Set<Class<?>> seen = new HashSet<>();
+        while (!interfaces.isEmpty()) {
+            Class<?> c = interfaces.pollFirst();
+            if (seen.add(c)) {
+                Lane lane = laneByType.get(c);
+                if (lane != null) {
+                    return lane;
+                }
+                interfaces.addAll(Arrays.asList(c.getInterfaces()));
+            }
+        }
+        return defaultLane;
+    }
+
+    private void work() {
+        while (true) {
+            Lane lane;
+            Chunk chunk;
+            int from;
+            int to;
+            lock.lock();
+            try {
+                while ((lane = pickLane()) == null) {
+                    if (closed) {
+                        return;
+                    }
+                    workAvailable.awaitUninterruptibly();
+                }
+                chunk = lane.chunks.peekFirst();
+                // split small chunks across the lane's worker budget, cap large ones at MAX_CLAIM
+                int remaining = chunk.size - chunk.next;
+                int claim = Math.min(MAX_CLAIM, (remaining + lane.spec.maxWorkers() - 1) / lane.spec.maxWorkers());
+                from = chunk.next;
+                to = from + claim;
+                chunk.next = to;
+                if (to == chunk.size) {
+                    lane.chunks.pollFirst();
+                }
+                lane.queued -= claim;
+                lane.running++;
+                spaceAvailable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            long startedAt = System.nanoTime();
+            lane.queueWaitNanos.record(startedAt - chunk.enqueuedAt);
+            long slo = lane.spec.slo().toNanos();
+            for (int i = from; i < to; i++) {
+                try {
+                    chunk.delivery.accept(chunk.subscribers[i]);
+                } catch (Throwable t) {
+                    chunk.tracker.fail(t);
+                }
+                if (System.nanoTime() - chunk.enqueuedAt > slo) {
+                    lane.sloBreaches.increment();
+                }
+                chunk.subscribers[i] = null;
+            }
+            lock.lock();
+            try {
+                lane.running--;
+                workAvailable.signal(); // this lane may have budget again
+            } finally {
+                lock.unlock();
+            }
+            // only now, so a caller that joins the dispatch sees the worker back in the pool
+            chunk.tracker.finish(to - from);
+        }
+    }
+
+    // Smooth weighted round-robin over lanes that have work and spare worker budget
+    private Lane pickLane() {
+        Lane best = null;
+        int eligibleWeight = 0;
+        for (Lane lane : lanes) {
+            if (lane.chunks.isEmpty() || lane.running >= lane.spec.maxWorkers()) {
+                continue;
+            }
+            lane.currentWeight += lane.spec.weight();
+            eligibleWeight += lane.spec.weight();
+            if (best == null || lane.currentWeight > best.currentWeight) {
+                best = lane;
+            }
+        }
+        if (best != null) {
+            best.currentWeight -= eligibleWeight;
+        }
+        return best;
+    }
+
+    public String laneStats() {
+        StringBuilder out = new StringBuilder();
+        lock.lock();
+        try {
+            for (Lane lane : lanes) {
+                HistogramSnapshot wait = lane.queueWaitNanos.snapshot();
+                out.append(lane.spec.name()).append(": queued=").append(lane.queued)
+                   .append(" running=").append(lane.running).append('/').append(lane.spec.maxWorkers())
+                   .append(" share=").append(lane.spec.weight()).append('/').append(totalWeight)
+                   .append(" waitP99=").append(wait.percentile(99) / 1_000).append("us")
+                   .append(" sloBreaches=").append(lane.sloBreaches.sum()).append('\n');
+            }
+        } finally {
+            lock.unlock();
+        }
+        return out.toString();
+    }
+
+    // Stops accepting work; workers finish every queued delivery before exiting
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            workAvailable.signalAll();
+            spaceAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Thread worker : workers) {
+            Threads.joinUninterruptibly(worker);
+        }
+    }
+}
+
+// ===================== Fan-out metrics =====================
+// Always-on instrumentation: per-subscriber-type delivery latency and error counts, plus
+// fan-out size and duration per upload. Recording is lock-free and allocation-free.
+
+// HDR-style log-linear histogram: values below 64 get exact buckets, above that each power of
+// two is split into 32 linear sub-buckets (~3% relative error). 1888 AtomicLong counters
+// cover the whole positive long range; record() is a couple of bit operations and an atomic add.
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = SUB_BUCKETS * (64 - SUB_BUCKET_BITS);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(indexOf(v));
+        sum.add(v);
+        if (v > max.get()) {
+            max.accumulateAndGet(v, Math::max);
+        }
+    }
+
+    static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS * shift + (int) (value >>> shift);
+    }
+
+    // Largest value that lands in the bucket, so reported percentiles never under-state latency
+    static long highestValueAt(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = index - (long) SUB_BUCKETS * shift;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    public HistogramSnapshot snapshot() {
+        long[] copy = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new HistogramSnapshot(copy, total, sum.sum(), max.get());
+    }
+}
+
+// counts is the snapshot's own copy of the buckets
+record HistogramSnapshot(long[] counts, long count, long sum, long max) {
+    public double mean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, LatencyHistogram.highestValueAt(i));
+            }
+        }
+        return max;
+    }
+}
+
+class FanOutMetrics {
+    static final class TypeStats {
+        final LatencyHistogram latencyNanos = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+    }
+
+    private final ConcurrentHashMap<Class<?>, TypeStats> byType = new ConcurrentHashMap<>();
+    private final LatencyHistogram fanOutSize = new LatencyHistogram();
+    private final LatencyHistogram fanOutNanos = new LatencyHistogram();
+    private final LongAdder fanOuts = new LongAdder();
+
+    TypeStats statsFor(Class<?> type) {
+        TypeStats stats = byType.get(type); // plain get on the hot path: no lambda, no allocation
+        return stats != null ? stats : byType.computeIfAbsent(type, t -> new TypeStats());
+    }
+
+    // Wraps the innermost update() call, so every attempt - first try, retry, outbox re-delivery
+    // or digest - is timed against its subscriber type and every failure is counted.
+    // `reached` counts the successful deliveries of one upload.
+    Consumer<Subscriber> timed(Consumer<Subscriber> delivery, AtomicInteger reached) {
+        return subscriber -> {
+            TypeStats stats = statsFor(subscriber.getClass());
+            long t0 = System.nanoTime();
+            try {
+                delivery.accept(subscriber);
+                reached.incrementAndGet();
+            } catch (RuntimeException e) {
+                stats.errors.increment();
+                throw e;
+            } finally {
+                stats.latencyNanos.record(System.nanoTime() - t0);
+            }
+        };
+    }
+
+    // Once per upload: how many subscribers it reached and how long until its fan-out completed
+    void recordFanOut(int size, long nanos) {
+        fanOuts.increment();
+        fanOutSize.record(size);
+        fanOutNanos.record(nanos);
+    }
+
+    // Prometheus-style text export
+    public String export() {
+        StringBuilder out = new StringBuilder();
+        out.append("observer_fanouts_total ").append(fanOuts.sum()).append('\n');
+        appendHistogram(out, "observer_fanout_size", "", fanOutSize.snapshot());
+        appendHistogram(out, "observer_fanout_duration_ns", "", fanOutNanos.snapshot());
+        byType.forEach((type, stats) -> {
+            String label = "type=\"" + type.getSimpleName() + "\"";
+            appendHistogram(out, "observer_delivery_latency_ns", label, stats.latencyNanos.snapshot());
+            out.append("observer_delivery_errors_total{").append(label).append("} ")
+               .append(stats.errors.sum()).append('\n');
+        });
+        return out.toString();
+    }
+
+    public HistogramSnapshot deliveryLatency(Class<? extends Subscriber> type) {
+        TypeStats stats = byType.get(type);
+        return stats == null ? new LatencyHistogram().snapshot() : stats.latencyNanos.snapshot();
+    }
+
+    public long deliveryErrors(Class<? extends Subscriber> type) {
+        TypeStats stats = byType.get(type);
+        return stats == null ? 0 : stats.errors.sum();
+    }
+
+    public HistogramSnapshot fanOutSize() {
+        return fanOutSize.snapshot();
+    }
+
+    public HistogramSnapshot fanOutDuration() {
+        return fanOutNanos.snapshot();
+    }
+
+    private static void appendHistogram(StringBuilder out, String name, String labels, HistogramSnapshot snapshot) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        for (String quantile : new String[] {"0.5", "0.9", "0.99", "0.999"}) {
+            out.append(name).append("{").append(prefix).append("quantile=\"").append(quantile).append("\"} ")
+               .append(snapshot.percentile(Double.parseDouble(quantile) * 100)).append('\n');
+        }
+        out.append(name).append("_max").append(labels.isEmpty() ? "" : "{" + labels + "}").append(' ')
+           .append(snapshot.max()).append('\n');
+        out.append(name).append("_count").append(labels.isEmpty() ? "" : "{" + labels + "}").append(' ')
+           .append(snapshot.count()).append('\n');
+    }
+}
+
+// ===================== Duplicate suppression =====================
+// A time-sliced Bloom filter over (subscriber, video) pairs. Inserts go to the current slice and
+// lookups check every slice; when a slice's period ends the oldest slice is wiped and reused, so
+// memory is fixed up front (it depends on notifications per slice, not on the subscriber count)
+// and pairs are forgotten after slices x slicePeriod.
+class DuplicateFilter {
+    private final int slices;
+    private final int wordsPerSlice;
+    private final long bitsPerSlice;
+    private final int hashes;
+    private final long slicePeriodNanos;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLongArray bits;
+    private final AtomicLong currentPeriod = new AtomicLong();
+
+    // A lookup consults every slice, so each is sized for falsePositiveRate / slices
+    public DuplicateFilter(long expectedPerSlice, double falsePositiveRate, int slices, Duration slicePeriod) {
+        if (slices < 2) {
+            throw new IllegalArgumentException("Need at least two slices to rotate: " + slices);
+        }
+        double perSliceRate = falsePositiveRate / slices;
+        long bitsNeeded = (long) Math.ceil(-expectedPerSlice * Math.log(perSliceRate) / (Math.log(2) * Math.log(2)));
+        long words = Math.max(1, (bitsNeeded + 63) / 64);
+        if (words * slices > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Filter too large; lower expectedPerSlice or raise falsePositiveRate");
+        }
+        this.slices = slices;
+        this.wordsPerSlice = (int) words;
+        this.bitsPerSlice = words * 64;
+        this.hashes = Math.max(1, (int) Math.round((double) bitsPerSlice / Math.max(1, expectedPerSlice) * Math.log(2)));
+        this.slicePeriodNanos = slicePeriod.toNanos();
+        this.bits = new AtomicLongArray(wordsPerSlice * slices);
+    }
+
+    // True if the (subscriber, video) pair was probably added within the window; never false
+    // for a pair that was. Checking and adding are separate so a pair is only added once its
+    // notification actually went out - a failed delivery stays eligible for its retry.
+    public boolean mightContain(long subscriberKey, long videoId) {
+        rotateIfDue();
+        return contains(hash1(subscriberKey, videoId), hash2(subscriberKey, videoId));
+    }
+
+    // Concurrent deliveries of the same pair may both pass mightContain before either adds it
+    public void add(long subscriberKey, long videoId) {
+        int slice = rotateIfDue();
+        long h1 = hash1(subscriberKey, videoId);
+        long h2 = hash2(subscriberKey, videoId);
+        int base = slice * wordsPerSlice;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bitsPerSlice);
+            long mask = 1L << bit;
+            int word = base + (int) (bit >>> 6);
+            if ((bits.get(word) & mask) == 0) {
+                bits.getAndAccumulate(word, mask, (current, m) -> current | m);
+            }
+        }
+    }
+
+    private static long hash1(long subscriberKey, long videoId) {
+        return mix(subscriberKey * 0x9E3779B97F4A7C15L ^ videoId);
+    }
+
+    private static long hash2(long subscriberKey, long videoId) {
+        return mix(videoId * 0xC2B2AE3D27D4EB4FL ^ subscriberKey) | 1;
+    }
+
+    private boolean contains(long h1, long h2) {
+        for (int slice = 0; slice < slices; slice++) {
+            int base = slice * wordsPerSlice;
+            boolean all = true;
+            for (int i = 0; i < hashes && all; i++) {
+                long bit = Long.remainderUnsigned(h1 + i * h2, bitsPerSlice);
+                all = (bits.get(base + (int) (bit >>> 6)) & (1L << bit)) != 0;
+            }
+            if (all) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The caller that moves the period forward wipes the slice it is about to reuse
+    private int rotateIfDue() {
+        long period = (System.nanoTime() - startNanos) / slicePeriodNanos;
+        long seen = currentPeriod.get();
+        while (period > seen) {
+            if (currentPeriod.compareAndSet(seen, period)) {
+                long wipeFrom = Math.max(seen + 1, period - slices + 1);
+                for (long p = wipeFrom; p <= period; p++) {
+                    int base = (int) (p % slices) * wordsPerSlice;
+                    for (int w = 0; w < wordsPerSlice; w++) {
+                        bits.set(base + w, 0);
+                    }
+                }
+                break;
+            }
+            seen = currentPeriod.get();
+        }
+        return (int) (period % slices);
+    }
+
+    public long memoryBytes() {
+        return (long) wordsPerSlice * slices * Long.BYTES;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+}
+
+// ===================== Failure isolation and retries =====================
+// One throwing update() used to abort the whole notify loop. RetryingDispatcher catches failures
+// per subscriber, retries them with exponential backoff and full jitter on a hashed timing wheel,
+// and moves subscribers that exhaust their attempts to a dead-letter list.
+
+// Hashed timing wheel: wheelSize buckets of `tick` each. Scheduling is an O(1) lock-free push;
+// a single ticker thread moves new entries into buckets and expires the current bucket, so a
+// million pending retries cost a million small entries - no thread or timer task per retry.
+// Closing the wheel cancels whatever is still pending instead of silently dropping it.
+class HashedTimingWheel implements AutoCloseable {
+    // The scheduled item is its own list node - in the incoming stack and then in its bucket -
+    // and its own task on the expiry executor, so the wheel allocates nothing per entry
+    abstract static class Entry implements Runnable {
+        private long deadlineTick;
+        private long remainingRounds;
+        private Entry next;
+
+        protected abstract void expire();
+
+        @Override
+        public final void run() {
+            expire();
+        }
+
+        // The wheel closed before the deadline; runs on the closing (or scheduling) thread
+        protected void cancelled() {
+        }
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final Entry[] buckets;
+    private final AtomicReference<Entry> incoming = new AtomicReference<>(); // Treiber stack
+    private final Executor expiryExecutor;
+    private final AtomicLong pending = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+    private final Thread ticker;
+    private volatile boolean running = true;
+    private long currentTick; // owned by the ticker thread
+
+    public HashedTimingWheel(Duration tick, int wheelSize, Executor expiryExecutor) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("wheelSize must be a power of two: " + wheelSize);
+        }
+        this.tickNanos = tick.toNanos();
+        this.mask = wheelSize - 1;
+        this.buckets = new Entry[wheelSize];
+        this.expiryExecutor = expiryExecutor;
+        this.ticker = Thread.ofPlatform().daemon().name("timing-wheel").start(this::run);
+    }
+
+    public void schedule(Entry entry, Duration delay) {
+        long elapsed = System.nanoTime() - startNanos + delay.toNanos();
+        entry.deadlineTick = (elapsed + tickNanos - 1) / tickNanos;
+        pending.incrementAndGet();
+        Entry head;
+        do {
+            head = incoming.get();
+            entry.next = head;
+        } while (!incoming.compareAndSet(head, entry));
+        if (!running) {
+            cancel(incoming.getAndSet(null)); // the ticker may already have made its last sweep
+        }
+    }
+
+    public long pendingCount() {
+        return pending.get();
+    }
+
+    private void run() {
+        while (running) {
+            long nextTickAt = startNanos + (currentTick + 1) * tickNanos;
+            long sleep = nextTickAt - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(sleep);
+                continue;
+            }
+            currentTick++;
+            transferIncoming();
+            expireBucket(currentTick & mask);
+        }
+        cancel(incoming.getAndSet(null));
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            cancel(buckets[bucket]);
+            buckets[bucket] = null;
+        }
+    }
+
+    private void transferIncoming() {
+        Entry entry = incoming.getAndSet(null);
+        while (entry != null) {
+            Entry next = entry.next;
+            long tick = Math.max(entry.deadlineTick, currentTick); // already due -> this tick
+            entry.remainingRounds = (tick - currentTick) / buckets.length;
+            int bucket = (int) (tick & mask);
+            entry.next = buckets[bucket];
+            buckets[bucket] = entry;
+            entry = next;
+        }
+    }
+
+    private void cancel(Entry entry) {
+        while (entry != null) {
+            Entry next = entry.next;
+            entry.next = null;
+            pending.decrementAndGet();
+            entry.cancelled();
+            entry = next;
+        }
+    }
+
+    private void expireBucket(long bucketIndex) {
+        int bucket = (int) bucketIndex;
+        Entry entry = buckets[bucket];
+        Entry survivors = null;
+        while (entry != null) {
+            Entry next = entry.next;
+            if (entry.remainingRounds <= 0) {
+                entry.next = null;
+                pending.decrementAndGet();
+                expiryExecutor.execute(entry);
+            } else {
+                entry.remainingRounds--;
+                entry.next = survivors;
+                survivors = entry;
+            }
+            entry = next;
+        }
+        buckets[bucket] = survivors;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        ticker.interrupt();
+        Threads.joinUninterruptibly(ticker);
+    }
+}
+
+record DeadLetter(Subscriber subscriber, int attempts, Throwable lastFailure) {
+    @Override
+    public String toString() {
+        return "DeadLetter[" + subscriber + " after " + attempts + " attempts: " + lastFailure + "]";
+    }
+}
+
+// Decorates another dispatcher: a failing update() no longer affects anyone else, and the
+// returned future completes once the first attempt has been made for every subscriber.
+class RetryingDispatcher implements NotificationDispatcher {
+    private final NotificationDispatcher downstream;
+    private final HashedTimingWheel wheel;
+    private final int maxAttempts;
+    private final long baseDelayNanos;
+    private final long maxDelayNanos;
+    private final ConcurrentLinkedQueue<DeadLetter> deadLetters = new ConcurrentLinkedQueue<>();
+
+    public RetryingDispatcher(NotificationDispatcher downstream, HashedTimingWheel wheel, int maxAttempts,
+                              Duration baseDelay, Duration maxDelay) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+        }
+        this.downstream = downstream;
+        this.wheel = wheel;
+        this.maxAttempts = maxAttempts;
+        this.baseDelayNanos = baseDelay.toNanos();
+        this.maxDelayNanos = maxDelay.toNanos();
+    }
+
+    @Override
+    public CompletableFuture<Void> dispatch(Iterable<Subscriber> subscribers, Consumer<Subscriber> delivery) {
+        return downstream.dispatch(subscribers, subscriber -> attempt(subscriber, delivery, 1));
+    }
+
+    private void attempt(Subscriber subscriber, Consumer<Subscriber> delivery, int attempt) {
+        try {
+            delivery.accept(subscriber);
+        } catch (RuntimeException e) {
+            if (attempt >= maxAttempts) {
+                deadLetters.add(new DeadLetter(subscriber, attempt, e));
+            } else {
+                wheel.schedule(new Retry(subscriber, delivery, attempt + 1, e), backoff(attempt));
+            }
+        }
+    }
+
+    // Full jitter: uniform in [0, min(maxDelay, base * 2^(attempt-1))]
+    private Duration backoff(int attempt) {
+        long ceiling = baseDelayNanos << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > maxDelayNanos) {
+            ceiling = maxDelayNanos;
+        }
+        return Duration.ofNanos(ThreadLocalRandom.current().nextLong(ceiling + 1));
+    }
+
+    public List<DeadLetter> deadLetters() {
+        return List.copyOf(deadLetters);
+    }
+
+    public long pendingRetries() {
+        return wheel.pendingCount();
+    }
+
+    private final class Retry extends HashedTimingWheel.Entry {
+        private final Subscriber subscriber;
+        private final Consumer<Subscriber> delivery;
+        private final int attempt;
+        private final RuntimeException lastFailure;
+
+        Retry(Subscriber subscriber, Consumer<Subscriber> delivery, int attempt, RuntimeException lastFailure) {
+            this.subscriber = subscriber;
+            this.delivery = delivery;
+            this.attempt = attempt;
+            this.lastFailure = lastFailure;
+        }
+
+        @Override
+        protected void expire() {
+            attempt(subscriber, delivery, attempt);
+        }
+
+        @Override
+        protected void cancelled() {
+            // dead-lettered early: the wheel shut down before this retry was due
+            lastFailure.addSuppressed(new IllegalStateException("Retry cancelled: timing wheel closed"));
+            deadLetters.add(new DeadLetter(subscriber, attempt - 1, lastFailure));
+        }
+    }
+}
+
+// ===================== Interest-filtered subscriptions =====================
+// An upload carries a category, a language and the keywords of its title. A filter constrains
+// any of those dimensions (an empty dimension means "anything"); a subscriber matches when every
+// constrained dimension has at least one of its terms in the upload.
+
+// category and language may be null; keywords are the title's normalized tokens
+record VideoUpload(String title, String category, String language, Set<String> keywords) {
+    VideoUpload {
+        Objects.requireNonNull(title, "title");
+        keywords = Set.copyOf(keywords);
+    }
+
+    public VideoUpload(String title, String category, String language) {
+        this(title, normalize(category), normalize(language), tokenize(Objects.requireNonNull(title, "title")));
+    }
+
+    public static VideoUpload of(String title) {
+        return new VideoUpload(title, null, null);
+    }
+
+    // 64-bit FNV-1a over the title's chars: a stable video ID without allocating
+    static long idOf(String title) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < title.length(); i++) {
+            hash ^= title.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    static String normalize(String term) {
+        return term == null ? null : term.trim().toLowerCase(Locale.ROOT);
+    }
+
+    static Set<String> tokenize(String text) {
+        Set<String> tokens = new HashSet<>();
+        for (String token : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+}
+
+class SubscriptionFilter {
+    private final Set<String> categories = new HashSet<>();
+    private final Set<String> languages = new HashSet<>();
+    private final Set<String> keywords = new HashSet<>();
+
+    public SubscriptionFilter category(String category) {
+        categories.add(VideoUpload.normalize(Objects.requireNonNull(category, "category")));
+        return this;
+    }
+
+    public SubscriptionFilter language(String language) {
+        languages.add(VideoUpload.normalize(Objects.requireNonNull(language, "language")));
+        return this;
+    }
+
+    public SubscriptionFilter keyword(String keyword) {
+        keywords.add(VideoUpload.normalize(Objects.requireNonNull(keyword, "keyword")));
+        return this;
+    }
+
+    Set<String> categories() {
+        return categories;
+    }
+
+    Set<String> languages() {
+        return languages;
+    }
+
+    Set<String> keywords() {
+        return keywords;
+    }
+}
+
+// Inverted index from filter terms to the subscribers that want them, matched by set algebra
+// rather than by evaluating filters. Every subscriber gets a small int ID and belongs to the
+// group of the dimensions it constrains (category, language, keywords: 8 groups, one of them
+// "constrains nothing"). Each group keeps, per constrained dimension, a sorted int[] posting
+// per term. An upload's matches in a group are the intersection, across the group's dimensions,
+// of the postings for the upload's terms (a union over the upload's keywords), so a lookup
+// costs the postings it touches and no filter is ever checked.
+// Writers build a new immutable Snapshot under a lock, copying only the postings, term maps and
+// directory chunk they touch; match() reads the current Snapshot and takes no lock.
+class InterestIndex {
+    // Frozen copy of a filter; later changes to the SubscriptionFilter object don't reach the index
+    record Interests(Set<String> categories, Set<String> languages, Set<String> keywords) {
+        static Interests of(SubscriptionFilter filter) {
+            return new Interests(Set.copyOf(filter.categories()), Set.copyOf(filter.languages()),
+                                 Set.copyOf(filter.keywords()));
+        }
+
+        // every constrained dimension has at least one of its terms in the upload
+        boolean matches(VideoUpload upload) {
+            return (categories.isEmpty() || upload.category() != null && categories.contains(upload.category()))
+                    && (languages.isEmpty() || upload.language() != null && languages.contains(upload.language()))
+                    && (keywords.isEmpty() || !Collections.disjoint(keywords, upload.keywords()));
+        }
+
+        Set<String> terms(int dimension) {
+            return dimension == CATEGORY ? categories : dimension == LANGUAGE ? languages : keywords;
+        }
+
+        // bit d is set when dimension d is constrained
+        int group() {
+            return (categories.isEmpty() ? 0 : 1 << CATEGORY) | (languages.isEmpty() ? 0 : 1 << LANGUAGE)
+                    | (keywords.isEmpty() ? 0 : 1 << KEYWORD);
+        }
+    }
+
+    private static final int CATEGORY = 0;
+    private static final int LANGUAGE = 1;
+    private static final int KEYWORD = 2;
+    private static final int DIMENSIONS = 3;
+    private static final int GROUPS = 1 << DIMENSIONS;
+    private static final int DIRECTORY_SHIFT = 10;
+    private static final int DIRECTORY_CHUNK = 1 << DIRECTORY_SHIFT;
+    private static final int[] NO_IDS = new int[0];
+
+    // Immutable sorted set of subscriber IDs: (base - removed) + added. A write copies only the
+    // small delta arrays; once the delta outgrows about sqrt(base) it is folded into a new base,
+    // so a write costs O(sqrt n) amortized however popular the term is.
+    private static final class Posting {
+        static final Posting EMPTY = new Posting(NO_IDS, NO_IDS, NO_IDS);
+
+        final int[] base;
+        final int[] added;
+        final int[] removed;
+        private volatile int[] merged; // built on first read; every reader builds the same array
+
+        private Posting(int[] base, int[] added, int[] removed) {
+            this.base = base;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        int size() {
+            return base.length - removed.length + added.length;
+        }
+
+        Posting with(int id) {
+            int r = Arrays.binarySearch(removed, id);
+            if (r >= 0) {
+                return of(base, added, delete(removed, r));
+            }
+            int a = Arrays.binarySearch(added, id);
+            if (a >= 0 || Arrays.binarySearch(base, id) >= 0) {
+                return this;
+            }
+            return of(base, insert(added, -a - 1, id), removed);
+        }
+
+        Posting without(int id) {
+            int a = Arrays.binarySearch(added, id);
+            if (a >= 0) {
+                return of(base, delete(added, a), removed);
+            }
+            int r = Arrays.binarySearch(removed, id);
+            if (r >= 0 || Arrays.binarySearch(base, id) < 0) {
+                return this;
+            }
+            return of(base, added, insert(removed, -r - 1, id));
+        }
+
+        int[] ids() {
+            if (added.length == 0 && removed.length == 0) {
+                return base;
+            }
+            int[] ids = merged;
+            if (ids == null) {
+                ids = new int[size()];
+                int out = 0;
+                int r = 0;
+                int a = 0;
+                for (int id : base) {
+                    if (r < removed.length && removed[r] == id) {
+                        r++;
+                        continue;
+                    }
+                    while (a < added.length && added[a] < id) {
+                        ids[out++] = added[a++];
+                    }
+                    ids[out++] = id;
+                }
+                while (a < added.length) {
+                    ids[out++] = added[a++];
+                }
+                merged = ids;
+            }
+            return ids;
+        }
+
+        private static Posting of(int[] base, int[] added, int[] removed) {
+            int delta = added.length + removed.length;
+            if (delta > 16 && (long) delta * delta > base.length) {
+                return new Posting(new Posting(base, added, removed).ids(), NO_IDS, NO_IDS);
+            }
+            return new Posting(base, added, removed);
+        }
+
+        private static int[] insert(int[] ids, int at, int id) {
+            int[] grown = new int[ids.length + 1];
+            System.arraycopy(ids, 0, grown, 0, at);
+            grown[at] = id;
+            System.arraycopy(ids, at, grown, at + 1, ids.length - at);
+            return grown;
+        }
+
+        private static int[] delete(int[] ids, int at) {
+            int[] shrunk = new int[ids.length - 1];
+            System.arraycopy(ids, 0, shrunk, 0, at);
+            System.arraycopy(ids, at + 1, shrunk, at, shrunk.length - at);
+            return shrunk;
+        }
+    }
+
+    // Everything match() reads, published as a unit
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(emptyPostings(), Posting.EMPTY, new Subscriber[0][], new int[GROUPS]);
+
+        final List<Map<String, Posting>> postings; // [group * DIMENSIONS + dimension]: term -> IDs
+        final Posting unfiltered;                  // the group that constrains nothing
+        final Subscriber[][] directory;            // ID -> subscriber, in chunks
+        final int[] groupSizes;
+
+        Snapshot(List<Map<String, Posting>> postings, Posting unfiltered, Subscriber[][] directory, int[] groupSizes) {
+            this.postings = postings;
+            this.unfiltered = unfiltered;
+            this.directory = directory;
+            this.groupSizes = groupSizes;
+        }
+
+        private static List<Map<String, Posting>> emptyPostings() {
+            List<Map<String, Posting>> postings = new ArrayList<>();
+            for (int i = 0; i < GROUPS * DIMENSIONS; i++) {
+                postings.add(Map.of());
+            }
+            return postings;
+        }
+    }
+
+    // Copy-on-write edit of a Snapshot: each term map and directory chunk is copied on first touch
+    private static final class Builder {
+        final List<Map<String, Posting>> postings;
+        final boolean[] ownedMaps = new boolean[GROUPS * DIMENSIONS];
+        Posting unfiltered;
+        Subscriber[][] directory;
+        boolean[] ownedChunks; // null until the chunk table itself has been copied
+        final int[] groupSizes;
+
+        Builder(Snapshot from) {
+            postings = new ArrayList<>(from.postings);
+            unfiltered = from.unfiltered;
+            directory = from.directory;
+            groupSizes = from.groupSizes.clone();
+        }
+
+        void post(Interests interests, int id, boolean add) {
+            int group = interests.group();
+            groupSizes[group] += add ? 1 : -1;
+            if (group == 0) {
+                unfiltered = add ? unfiltered.with(id) : unfiltered.without(id);
+                return;
+            }
+            for (int dimension = 0; dimension < DIMENSIONS; dimension++) {
+                if ((group & 1 << dimension) == 0) {
+                    continue;
+                }
+                Map<String, Posting> byTerm = ownedMap(group * DIMENSIONS + dimension);
+                for (String term : interests.terms(dimension)) {
+                    Posting posting = byTerm.getOrDefault(term, Posting.EMPTY);
+                    posting = add ? posting.with(id) : posting.without(id);
+                    if (posting.size() == 0) {
+                        byTerm.remove(term);
+                    } else {
+                        byTerm.put(term, posting);
+                    }
+                }
+            }
+        }
+
+        void place(int id, Subscriber subscriber) {
+            int chunk = id >>> DIRECTORY_SHIFT;
+            if (ownedChunks == null || chunk >= directory.length) {
+                int length = Math.max(Math.max(directory.length, 8), Integer.highestOneBit(chunk) * 2);
+                directory = Arrays.copyOf(directory, length);
+                ownedChunks = ownedChunks == null ? new boolean[length] : Arrays.copyOf(ownedChunks, length);
+            }
+            if (!ownedChunks[chunk]) {
+                directory[chunk] = directory[chunk] == null ? new Subscriber[DIRECTORY_CHUNK] : directory[chunk].clone();
+                ownedChunks[chunk] = true;
+            }
+            directory[chunk][id & (DIRECTORY_CHUNK - 1)] = subscriber;
+        }
+
+        Snapshot build() {
+            return new Snapshot(postings, unfiltered, directory, groupSizes);
+        }
+
+        private Map<String, Posting> ownedMap(int index) {
+            if (!ownedMaps[index]) {
+                postings.set(index, new HashMap<>(postings.get(index)));
+                ownedMaps[index] = true;
+            }
+            return postings.get(index);
+        }
+    }
+
+    private record Registration(int id, Interests interests) {
+    }
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Map<Subscriber, Registration> registrations = new HashMap<>(); // guarded by writeLock
+    private int[] freeIds = new int[16];                                         // guarded by writeLock
+    private int freeCount;
+    private int nextId;
+    private volatile Snapshot current = Snapshot.EMPTY;
+
+    public void add(Subscriber subscriber, SubscriptionFilter filter) {
+        add(subscriber, Interests.of(filter));
+    }
+
+    public void add(Subscriber subscriber, Interests interests) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        writeLock.lock();
+        try {
+            Builder builder = new Builder(current);
+            Registration old = registrations.get(subscriber);
+            int id;
+            if (old != null) { // re-subscribing replaces the filter and keeps the ID
+                id = old.id();
+                builder.post(old.interests(), id, false);
+            } else {
+                id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+                builder.place(id, subscriber);
+            }
+            builder.post(interests, id, true);
+            registrations.put(subscriber, new Registration(id, interests));
+            current = builder.build();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean remove(Subscriber subscriber) {
+        writeLock.lock();
+        try {
+            Registration registration = registrations.remove(subscriber);
+            if (registration == null) {
+                return false;
+            }
+            Builder builder = new Builder(current);
+            builder.post(registration.interests(), registration.id(), false);
+            builder.place(registration.id(), null);
+            current = builder.build();
+            // older snapshots keep their own directory chunks, so the ID can be handed out again
+            if (freeCount == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+            }
+            freeIds[freeCount++] = registration.id();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // The filter a subscriber is registered with, or null
+    public Interests interestsOf(Subscriber subscriber) {
+        writeLock.lock();
+        try {
+            Registration registration = registrations.get(subscriber);
+            return registration == null ? null : registration.interests();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public List<Subscriber> match(VideoUpload upload) {
+        Snapshot snapshot = current;
+        List<Subscriber> result = new ArrayList<>();
+        resolve(snapshot, snapshot.unfiltered.ids(), result);
+        for (int group = 1; group < GROUPS; group++) {
+            if (snapshot.groupSizes[group] == 0) {
+                continue;
+            }
+            // category and language are single lookups, so they go first and shrink the keyword step
+            int[] matched = null;
+            for (int dimension = 0; dimension < DIMENSIONS && (matched == null || matched.length > 0); dimension++) {
+                if ((group & 1 << dimension) != 0) {
+                    int[] ids = lookup(snapshot.postings.get(group * DIMENSIONS + dimension), upload, dimension);
+                    matched = matched == null ? ids : intersect(matched, ids);
+                }
+            }
+            resolve(snapshot, matched, result);
+        }
+        return result;
+    }
+
+    // IDs posted under any of the upload's terms in one dimension
+    private static int[] lookup(Map<String, Posting> byTerm, VideoUpload upload, int dimension) {
+        if (dimension != KEYWORD) {
+            String term = dimension == CATEGORY ? upload.category() : upload.language();
+            Posting posting = term == null ? null : byTerm.get(term);
+            return posting == null ? NO_IDS : posting.ids();
+        }
+        int[] union = NO_IDS;
+        for (String keyword : upload.keywords()) {
+            Posting posting = byTerm.get(keyword);
+            if (posting != null) {
+                union = union.length == 0 ? posting.ids() : union(union, posting.ids());
+            }
+        }
+        return union;
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        int[] out = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                out[n++] = a[i++];
+            } else if (a[i] > b[j]) {
+                out[n++] = b[j++];
+            } else {
+                out[n++] = a[i++];
+                j++;
+            }
+        }
+        while (i < a.length) {
+            out[n++] = a[i++];
+        }
+        while (j < b.length) {
+            out[n++] = b[j++];
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    // Walks the shorter list; gallops through the longer one when it is much longer
+    private static int[] intersect(int[] a, int[] b) {
+        int[] small = a.length <= b.length ? a : b;
+        int[] large = small == a ? b : a;
+        int[] out = new int[small.length];
+        int n = 0;
+        if (small.length * 16 < large.length) {
+            int from = 0;
+            for (int id : small) {
+                int step = 1;
+                int to = from;
+                while (to < large.length && large[to] < id) {
+                    from = to + 1;
+                    to += step;
+                    step <<= 1;
+                }
+                int at = Arrays.binarySearch(large, from, Math.min(to + 1, large.length), id);
+                if (at >= 0) {
+                    out[n++] = id;
+                    from = at + 1;
+                } else {
+                    from = -at - 1;
+                }
+            }
+        } else {
+            int j = 0;
+            for (int id : small) {
+                while (j < large.length && large[j] < id) {
+                    j++;
+                }
+                if (j < large.length && large[j] == id) {
+                    out[n++] = id;
+                }
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static void resolve(Snapshot snapshot, int[] ids, List<Subscriber> result) {
+        for (int id : ids) {
+            result.add(snapshot.directory[id >>> DIRECTORY_SHIFT][id & (DIRECTORY_CHUNK - 1)]);
+        }
+    }
+}
+
+// ===================== Catch-up for offline subscribers =====================
+// A bounded ring of the channel's most recent uploads, optionally backed by a NotificationOutbox
+// on disk. A reconnecting subscriber reads everything after its cursor in one sequential pass,
+// so a reconnect storm costs one read per subscriber instead of a push per missed upload.
+class ChannelEventLog {
+    private final VideoUpload[] ring;
+    private final int mask;
+    private final NotificationOutbox disk; // may be null
+    private long lastSeq;                  // guarded by this
+
+    public ChannelEventLog(int capacity, NotificationOutbox disk) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.ring = new VideoUpload[capacity];
+        this.mask = capacity - 1;
+        this.disk = disk;
+        if (disk != null) {
+            disk.replay(0, (seq, upload) -> {
+                ring[(int) (seq & mask)] = upload;
+                lastSeq = seq;
+            });
+        }
+    }
+
+    public long append(VideoUpload upload) {
+        long seq;
+        synchronized (this) {
+            // the disk log hands out the sequence number; taking it under this lock keeps ring slots in seq order
+            seq = disk != null ? disk.write(upload) : lastSeq + 1;
+            ring[(int) (seq & mask)] = upload;
+            lastSeq = seq;
+        }
+        if (disk != null) {
+            disk.awaitDurable(seq); // group commit happens outside the lock
+        }
+        return seq;
+    }
+
+    // True if this log reads the same outbox a channel writes to; the channel then records each
+    // upload once and hands it over with remember() instead of append()
+    boolean isBackedBy(NotificationOutbox outbox) {
+        return disk != null && disk == outbox;
+    }
+
+    // The caller already wrote the upload to the shared outbox as `seq`, in seq order
+    synchronized void remember(long seq, VideoUpload upload) {
+        ring[(int) (seq & mask)] = upload;
+        lastSeq = seq;
+    }
+
+    public synchronized long lastSeq() {
+        return lastSeq;
+    }
+
+    // Oldest sequence number still held in memory
+    public synchronized long oldestInMemory() {
+        return Math.max(1, lastSeq - ring.length + 1);
+    }
+
+    // Everything after `cursor`, oldest first. Falls back to the disk log once the ring has wrapped
+    // past the cursor; without one, uploads older than the ring are gone.
+    public List<VideoUpload> readAfter(long cursor) {
+        long head;
+        synchronized (this) {
+            head = lastSeq;
+            long oldest = Math.max(1, head - ring.length + 1);
+            if (cursor + 1 >= oldest || disk == null) {
+                List<VideoUpload> uploads = new ArrayList<>((int) Math.max(0, head - Math.max(cursor, oldest - 1)));
+                for (long seq = Math.max(cursor + 1, oldest); seq <= head; seq++) {
+                    uploads.add(ring[(int) (seq & mask)]);
+                }
+                return uploads;
+            }
+        }
+        List<VideoUpload> uploads = new ArrayList<>();
+        disk.replay(cursor, (seq, upload) -> {
+            if (seq <= head) {
+                uploads.add(upload);
+            }
+        });
+        return uploads;
+    }
+}
+
+// ===================== Durable notification outbox =====================
+// If the process dies halfway through a fan-out, the rest of the subscribers never hear about
+// the upload. The outbox records every upload before fan-out in an append-only log of
+// memory-mapped segment files, and keeps one delivery cursor per subscriber shard in a
+// small mapped file. On restart, delivery resumes from the cursors (at-least-once).
+// Cursor moves land in the page cache and are only forced before segments are deleted or on
+// close: a cursor lost to an OS crash just means some uploads are delivered again.
+//
+// Segment record layout: [int length][long seq][upload]; length 0 = end of data. The upload is
+// three UTF-8 strings - title, category, language - each as [int byteCount][bytes], -1 for null.
+// Appends use group commit: the first waiting appender forces everything written so far,
+// appenders that arrive meanwhile ride along with the next force, so each upload costs at most one fsync.
+class NotificationOutbox implements AutoCloseable {
+    private static final int HEADER_BYTES = Integer.BYTES + Long.BYTES;
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    @FunctionalInterface
+    interface RecordVisitor {
+        void visit(long seq, VideoUpload upload);
+    }
+
+    private static final class Segment {
+        final Path path;
+        final long firstSeq;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        Segment(Path path, long firstSeq, int size) throws IOException {
+            this.path = path;
+            this.firstSeq = firstSeq;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                            StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int shardCount;
+    private final FileChannel cursorChannel;
+    private final MappedByteBuffer cursorBuffer;
+
+    private final Object writeLock = new Object();
+    private final List<Segment> segments = new ArrayList<>();   // guarded by writeLock
+    private final List<Segment> unforced = new ArrayList<>();   // written since the last force, guarded by writeLock
+    private long nextSeq;                                       // guarded by writeLock
+
+    private final Object commitLock = new Object();
+    private boolean committing;                                 // guarded by commitLock
+    private volatile long durableSeq;
+
+    public NotificationOutbox(Path directory, int shardCount, int segmentSize) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount must be positive: " + shardCount);
+        }
+        this.directory = directory;
+        this.shardCount = shardCount;
+        this.segmentSize = segmentSize;
+        try {
+            Files.createDirectories(directory);
+            Path cursorFile = directory.resolve("cursors.dat");
+            if (Files.exists(cursorFile) && Files.size(cursorFile) != (long) shardCount * Long.BYTES) {
+                throw new IllegalStateException("Outbox " + directory + " was created with a different shard count");
+            }
+            cursorChannel = FileChannel.open(cursorFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                             StandardOpenOption.WRITE);
+            cursorBuffer = cursorChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) shardCount * Long.BYTES);
+            openSegments();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open outbox in " + directory, e);
+        }
+    }
+
+    public int shardCount() {
+        return shardCount;
+    }
+
+    // Stable across restarts as long as the subscriber's hashCode is value-based
+    public int shardOf(Subscriber subscriber) {
+        return Math.floorMod(subscriber.hashCode(), shardCount);
+    }
+
+    // Records the upload and returns its sequence number once it is durable
+    public long append(VideoUpload upload) {
+        long seq = write(upload);
+        awaitDurable(seq);
+        return seq;
+    }
+
+    // Writes the record without waiting for it to reach disk; pair with awaitDurable(seq)
+    public long write(VideoUpload upload) {
+        byte[] payload = encode(upload);
+        int recordBytes = HEADER_BYTES + payload.length;
+        if (recordBytes + Integer.BYTES > segmentSize) {
+            throw new IllegalArgumentException("Video upload does not fit in an outbox segment");
+        }
+        long seq;
+        synchronized (writeLock) {
+            Segment active = segments.get(segments.size() - 1);
+            if (active.buffer.remaining() < recordBytes + Integer.BYTES) { // keep room for the end marker
+                active = newSegment(nextSeq);
+            }
+            seq = nextSeq++;
+            MappedByteBuffer buffer = active.buffer;
+            int start = buffer.position();
+            // payload first, length last: a torn write still reads as "end of data"
+            buffer.putLong(start + Integer.BYTES, seq);
+            buffer.put(start + HEADER_BYTES, payload);
+            buffer.putInt(start, payload.length + Long.BYTES);
+            buffer.position(start + recordBytes);
+            markDirty(active);
+        }
+        return seq;
+    }
+
+    // Group commit: if nobody is forcing, this appender becomes the leader and forces everything
+    // appended so far (its own record included); otherwise it waits for the running commit and
+    // re-checks, becoming the next leader only if that commit did not cover it.
+    public void awaitDurable(long seq) {
+        while (true) {
+            synchronized (commitLock) {
+                while (committing && durableSeq < seq) {
+                    try {
+                        commitLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while waiting for outbox commit", e);
+                    }
+                }
+                if (durableSeq >= seq) {
+                    return;
+                }
+                committing = true;
+            }
+            try {
+                commit();
+            } finally {
+                synchronized (commitLock) {
+                    committing = false;
+                    commitLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void commit() {
+        long target;
+        List<Segment> toForce;
+        synchronized (writeLock) {
+            target = nextSeq - 1;
+            toForce = new ArrayList<>(unforced);
+            unforced.clear();
+        }
+        for (Segment segment : toForce) {
+            segment.buffer.force();
+        }
+        durableSeq = target;
+    }
+
+    private void markDirty(Segment segment) {
+        if (!unforced.contains(segment)) {
+            unforced.add(segment);
+        }
+    }
+
+    public void advanceCursor(int shard, long seq) {
+        synchronized (cursorBuffer) {
+            if (cursorBuffer.getLong(shard * Long.BYTES) < seq) {
+                cursorBuffer.putLong(shard * Long.BYTES, seq);
+            }
+        }
+    }
+
+    public long[] cursors() {
+        long[] cursors = new long[shardCount];
+        synchronized (cursorBuffer) {
+            for (int shard = 0; shard < shardCount; shard++) {
+                cursors[shard] = cursorBuffer.getLong(shard * Long.BYTES);
+            }
+        }
+        return cursors;
+    }
+
+    // Visits every recorded upload with seq > afterSeq, oldest first
+    public void replay(long afterSeq, RecordVisitor visitor) {
+        List<Segment> snapshot;
+        synchronized (writeLock) {
+            snapshot = new ArrayList<>(segments);
+        }
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (i + 1 < snapshot.size() && snapshot.get(i + 1).firstSeq <= afterSeq + 1) {
+                continue; // the whole segment is at or below afterSeq
+            }
+            MappedByteBuffer buffer = snapshot.get(i).buffer;
+            int position = 0;
+            while (position + HEADER_BYTES <= segmentSize) {
+                int length = buffer.getInt(position);
+                if (length == 0) {
+                    break;
+                }
+                long seq = buffer.getLong(position + Integer.BYTES);
+                if (seq > afterSeq) {
+                    visitor.visit(seq, decode(buffer.slice(position + HEADER_BYTES, length - Long.BYTES)));
+                }
+                position += Integer.BYTES + length;
+            }
+        }
+    }
+
+    private static byte[] encode(VideoUpload upload) {
+        byte[][] fields = {utf8(upload.title()), utf8(upload.category()), utf8(upload.language())};
+        int size = 0;
+        for (byte[] field : fields) {
+            size += Integer.BYTES + (field == null ? 0 : field.length);
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        for (byte[] field : fields) {
+            if (field == null) {
+                out.putInt(-1);
+            } else {
+                out.putInt(field.length).put(field);
+            }
+        }
+        return out.array();
+    }
+
+    private static VideoUpload decode(ByteBuffer in) {
+        String title = readString(in);
+        String category = readString(in);
+        String language = readString(in);
+        return new VideoUpload(title, category, language);
+    }
+
+    private static byte[] utf8(String text) {
+        return text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Deletes segments whose uploads every shard has already received
+    public void deleteDeliveredSegments() {
+        long delivered = Arrays.stream(cursors()).min().orElse(0);
+        cursorBuffer.force(); // a cursor must be on disk before the records behind it disappear
+        synchronized (writeLock) {
+            while (segments.size() > 1 && segments.get(1).firstSeq <= delivered + 1) {
+                Segment oldest = segments.remove(0);
+                unforced.remove(oldest);
+                try {
+                    oldest.channel.close();
+                    Files.deleteIfExists(oldest.path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot delete outbox segment " + oldest.path, e);
+                }
+            }
+        }
+    }
+
+    private void openSegments() throws IOException {
+        List<Path> files;
+        try (var listing = Files.list(directory)) {
+            files = listing.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            segments.add(new Segment(file, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())),
+                                     segmentSize));
+        }
+        if (segments.isEmpty()) {
+            nextSeq = 1;
+            newSegment(1);
+            return;
+        }
+        // find the end of data in the newest segment
+        Segment active = segments.get(segments.size() - 1);
+        long lastSeq = active.firstSeq - 1;
+        int position = 0;
+        while (position + HEADER_BYTES <= segmentSize) {
+            int length = active.buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            lastSeq = active.buffer.getLong(position + Integer.BYTES);
+            position += Integer.BYTES + length;
+        }
+        active.buffer.position(position);
+        nextSeq = lastSeq + 1;
+        durableSeq = lastSeq;
+    }
+
+    private Segment newSegment(long firstSeq) {
+        try {
+            Segment segment = new Segment(directory.resolve(String.format("%020d", firstSeq) + SEGMENT_SUFFIX),
+                                          firstSeq, segmentSize);
+            segments.add(segment);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create outbox segment in " + directory, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            for (Segment segment : segments) {
+                segment.buffer.force();
+                segment.channel.close();
+            }
+            cursorBuffer.force();
+            cursorChannel.close();
+        }
+    }
+}
+
+// ===================== Per-subscriber mailboxes =====================
+// Calling update() directly lets a stalled subscriber stall the publisher. A mailbox turns
+// update() into a cheap enqueue; the real delivery happens on the mailbox's own virtual thread.
+
+// What a full mailbox does with a new notification
+enum OverflowPolicy {
+    BLOCK,           // wait for space - backpressure reaches the caller of update()
+    DROP_OLDEST,     // evict the oldest queued notification to make room
+    DROP_NEWEST,     // discard the incoming notification
+    COALESCE_LATEST  // collapse the whole backlog into the incoming (latest) notification
+}
+
+class MailboxSubscriber implements Subscriber, AutoCloseable {
+    private final Subscriber delegate;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ArrayDeque<String> queue;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final Thread consumer;
+    private boolean closed; // guarded by lock
+
+    public MailboxSubscriber(Subscriber delegate, int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.delegate = Objects.requireNonNull(delegate, "delegate");
+        this.capacity = capacity;
+        this.policy = Objects.requireNonNull(policy, "policy");
+        this.queue = new ArrayDeque<>(Math.min(capacity, 1024));
+        this.consumer = Thread.ofVirtual().name("mailbox-" + delegate.getClass().getSimpleName()).unstarted(this::drain);
+        consumer.start();
+    }
+
+    // Enqueue only; never calls the delegate on the publisher's thread
+    @Override
+    public void update(String videoTitle) {
+        lock.lock();
+        try {
+            if (closed) {
+                dropped.increment();
+                return;
+            }
+            if (queue.size() >= capacity) {
+                switch (policy) {
+                    case BLOCK -> {
+                        while (queue.size() >= capacity && !closed) {
+                            notFull.awaitUninterruptibly();
+                        }
+                        if (closed) {
+                            dropped.increment();
+                            return;
+                        }
+                    }
+                    case DROP_OLDEST -> {
+                        queue.pollFirst();
+                        dropped.increment();
+                    }
+                    case DROP_NEWEST -> {
+                        dropped.increment();
+                        return;
+                    }
+                    case COALESCE_LATEST -> {
+                        dropped.add(queue.size());
+                        queue.clear();
+                    }
+                }
+            }
+            queue.addLast(videoTitle);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drain() {
+        boolean drained = false;
+        try {
+            while (true) {
+                String videoTitle;
+                lock.lock();
+                try {
+                    while (queue.isEmpty() && !closed) {
+                        notEmpty.awaitUninterruptibly();
+                    }
+                    if (queue.isEmpty()) {
+                        drained = true;
+                        return; // closed and fully drained
+                    }
+                    videoTitle = queue.pollFirst();
+                    notFull.signal();
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    delegate.update(videoTitle);
+                    delivered.increment();
+                } catch (Exception e) {
+                    failed.increment(); // a failing delivery must not kill the consumer
+                }
+            }
+        } finally {
+            if (!drained) {
+                shutDownAbruptly();
+            }
+        }
+    }
+
+    // The consumer died on an Error: nothing will ever drain the queue again, so close the
+    // mailbox and release any publisher blocked on a full queue instead of letting it hang
+    private void shutDownAbruptly() {
+        lock.lock();
+        try {
+            closed = true;
+            dropped.add(queue.size());
+            queue.clear();
+            notFull.signalAll();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int depth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long deliveredCount() {
+        return delivered.sum();
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    public long failedCount() {
+        return failed.sum();
+    }
+
+    public OverflowPolicy policy() {
+        return policy;
+    }
+
+    public Subscriber delegate() {
+        return delegate;
+    }
+
+    // Stops accepting notifications, lets the consumer drain what is queued, and waits for it
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        Threads.joinUninterruptibly(consumer);
+    }
+
+    @Override
+    public String toString() {
+        return "Mailbox[" + delegate.getClass().getSimpleName() + ", policy=" + policy + ", depth=" + depth()
+                + "/" + capacity + ", delivered=" + deliveredCount() + ", dropped=" + droppedCount()
+                + ", failed=" + failedCount() + "]";
+    }
+}
+
+// Mailbox settings per subscriber type, e.g. push = small + coalesce, email = large + block
+class MailboxPolicies {
+    private record Settings(int capacity, OverflowPolicy policy) {
+    }
+
+    private final Map<Class<? extends Subscriber>, Settings> byType = new HashMap<>();
+    private final Settings defaults;
+
+    public MailboxPolicies(int defaultCapacity, OverflowPolicy defaultPolicy) {
+        this.defaults = new Settings(defaultCapacity, defaultPolicy);
+    }
+
+    public MailboxPolicies configure(Class<? extends Subscriber> type, int capacity, OverflowPolicy policy) {
+        byType.put(type, new Settings(capacity, policy));
+        return this;
+    }
+
+    public MailboxSubscriber wrap(Subscriber subscriber) {
+        Settings settings = byType.getOrDefault(subscriber.getClass(), defaults);
+        return new MailboxSubscriber(subscriber, settings.capacity(), settings.policy());
+    }
+}
+
+// ===================== Celebrity-scale fan-out =====================
+// A 10M-follower channel can't afford 10M Subscriber objects (each with its own strings)
+// sitting on the heap. Here the channel only stores primitive long IDs and asks a
+// directory for a deliverable Subscriber at the moment the notification is sent.
+
+// Resolves a subscriber ID to a delivery channel (email, push, ...) at send time
+interface SubscriberDirectory {
+    Subscriber resolve(long subscriberId); // null if the subscriber can no longer be reached
+}
+
+// Subject whose subscribers are IDs resolved through a SubscriberDirectory at send time
+interface IdYouTubeChannelSubject {
+    boolean subscribe(long subscriberId);
+    boolean unsubscribe(long subscriberId);
+    void notifySubscribers(String videoTitle);
+}
+
+// Open-addressing long -> int map (linear probing), so the ID index costs ~12 bytes per entry
+// instead of a boxed HashMap node per subscriber
+class LongIntIndex {
+    private long[] keys = new long[16];
+    private int[] values = new int[16]; // stored as value + 1, so 0 marks an empty slot
+    private int size;
+
+    // Presizes the table so the next `additional` puts never rehash
+    public void ensureCapacity(int additional) {
+        int needed = Integer.highestOneBit(Math.max(1, (size + additional) * 2)) << 1;
+        if (needed > keys.length) {
+            resize(needed);
+        }
+    }
+
+    public int get(long key) {
+        int mask = keys.length - 1;
+        for (int i = slotFor(key, mask); values[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i] - 1;
+            }
+        }
+        return -1;
+    }
+
+    public void put(long key, int value) {
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int i = slotFor(key, mask);
+        while (values[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (values[i] == 0) {
+            size++;
+        }
+        keys[i] = key;
+        values[i] = value + 1;
+    }
+
+    public int remove(long key) {
+        int mask = keys.length - 1;
+        int i = slotFor(key, mask);
+        while (values[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (values[i] == 0) {
+            return -1;
+        }
+        int removed = values[i] - 1;
+        // backward-shift deletion keeps probe chains intact without tombstones
+        int gap = i;
+        for (int j = (i + 1) & mask; values[j] != 0; j = (j + 1) & mask) {
+            int home = slotFor(keys[j], mask);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        values[gap] = 0;
+        size--;
+        return removed;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != 0) {
+                put(oldKeys[i], oldValues[i] - 1);
+            }
+        }
+    }
+
+    private static int slotFor(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L; // Fibonacci hashing spreads sequential IDs
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
+
+// Subscriber IDs packed into fixed-size long[] chunks (8 bytes per subscriber plus the index).
+// Removal swaps the last ID into the hole, so the chunks stay dense and every chunk is
+// a natural unit of parallel work.
+// A view is a stable snapshot: taking one starts a new epoch, and the first write to a chunk
+// (or to the chunk table) in an epoch copies it, so a fan-out walking an older view never sees
+// an ID move and a subscriber that stays subscribed is delivered exactly once. Between uploads
+// each touched chunk is copied at most once.
+class ChunkedIdStore {
+    static final int CHUNK_SHIFT = 16;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT; // 64K IDs = 512KB per chunk
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private long[][] chunks = new long[8][];
+    private long[] ownedAt = new long[8];   // epoch in which each chunk was last copied or created
+    private boolean tableShared;            // a view holds the current chunk table
+    private long epoch = 1;
+    private int size;
+    private final LongIntIndex positions = new LongIntIndex();
+
+    // Bulk insert for cold starts; duplicates are skipped
+    public synchronized void addAll(long[] ids, int count) {
+        positions.ensureCapacity(count);
+        int chunksNeeded = (size + count + CHUNK_SIZE - 1) >>> CHUNK_SHIFT;
+        if (chunksNeeded > chunks.length) {
+            growTable(Integer.highestOneBit(chunksNeeded) * 2);
+        }
+        for (int i = 0; i < count; i++) {
+            long id = ids[i];
+            if (positions.get(id) >= 0) {
+                continue;
+            }
+            writableChunk(size)[size & CHUNK_MASK] = id;
+            positions.put(id, size);
+            size++;
+        }
+    }
+
+    public synchronized boolean add(long id) {
+        if (positions.get(id) >= 0) {
+            return false;
+        }
+        if (size >>> CHUNK_SHIFT == chunks.length) {
+            growTable(chunks.length * 2);
+        }
+        writableChunk(size)[size & CHUNK_MASK] = id;
+        positions.put(id, size);
+        size++;
+        return true;
+    }
+
+    public synchronized boolean remove(long id) {
+        int position = positions.remove(id);
+        if (position < 0) {
+            return false;
+        }
+        int last = --size;
+        if (position != last) {
+            long moved = chunks[last >>> CHUNK_SHIFT][last & CHUNK_MASK];
+            writableChunk(position)[position & CHUNK_MASK] = moved;
+            positions.put(moved, position);
+        }
+        return true;
+    }
+
+    // Stable view for a fan-out: the IDs subscribed at this moment, unaffected by later writes
+    public synchronized ChunkView view() {
+        tableShared = true;
+        epoch++;
+        return new ChunkView(chunks, size);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // The chunk holding `position`, copied first if a view may still be reading it
+    private long[] writableChunk(int position) {
+        int chunk = position >>> CHUNK_SHIFT;
+        if (ownedAt[chunk] != epoch) {
+            if (tableShared) {
+                chunks = chunks.clone();
+                tableShared = false;
+            }
+            chunks[chunk] = chunks[chunk] == null ? new long[CHUNK_SIZE] : chunks[chunk].clone();
+            ownedAt[chunk] = epoch;
+        }
+        return chunks[chunk];
+    }
+
+    private void growTable(int length) {
+        chunks = Arrays.copyOf(chunks, length);
+        ownedAt = Arrays.copyOf(ownedAt, length);
+        tableShared = false;
+    }
+
+    static final class ChunkView {
+        final long[][] chunks;
+        final int size;
+
+        ChunkView(long[][] chunks, int size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+    }
+}
+
+// Splits the position range in halves until it is small enough to deliver on one thread.
+// Leaves are far smaller than a chunk, so even a few thousand subscribers spread over the pool.
+@SuppressWarnings("serial") // fork-join tasks are never serialized
+class ChunkFanOutTask extends RecursiveAction {
+    static final int LEAF_SIZE = 2048;
+
+    private final ChunkedIdStore.ChunkView view;
+    private final int from;
+    private final int to;
+    private final SubscriberDirectory directory;
+    private final Consumer<Subscriber> delivery;
+
+    ChunkFanOutTask(ChunkedIdStore.ChunkView view, int from, int to,
+                    SubscriberDirectory directory, Consumer<Subscriber> delivery) {
+        this.view = view;
+        this.from = from;
+        this.to = to;
+        this.directory = directory;
+        this.delivery = delivery;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= LEAF_SIZE) {
+            deliverRange();
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        invokeAll(new ChunkFanOutTask(view, from, mid, directory, delivery),
+                  new ChunkFanOutTask(view, mid, to, directory, delivery));
+    }
+
+    // a leaf never straddles more than two chunks
+    private void deliverRange() {
+        int position = from;
+        while (position < to) {
+            long[] ids = view.chunks[position >>> ChunkedIdStore.CHUNK_SHIFT];
+            int end = Math.min(to, ((position >>> ChunkedIdStore.CHUNK_SHIFT) + 1) << ChunkedIdStore.CHUNK_SHIFT);
+            for (int i = position & ChunkedIdStore.CHUNK_MASK; position < end; position++, i++) {
+                Subscriber subscriber = directory.resolve(ids[i]);
+                if (subscriber != null) {
+                    delivery.accept(subscriber);
+                }
+            }
+        }
+    }
+}
+
+// Concrete Subject for celebrity channels: subscribers are IDs, fan-out runs chunk-parallel
+class CelebrityYouTubeChannel implements IdYouTubeChannelSubject {
+    private final ChunkedIdStore subscriberIds = new ChunkedIdStore();
+    private final String channelName;
+    private final SubscriberDirectory directory;
+    private final ForkJoinPool pool;
+
+    public CelebrityYouTubeChannel(String channelName, SubscriberDirectory directory) {
+        this(channelName, directory, ForkJoinPool.commonPool());
+    }
+
+    public CelebrityYouTubeChannel(String channelName, SubscriberDirectory directory, ForkJoinPool pool) {
+        this.channelName = channelName;
+        this.directory = directory;
+        this.pool = pool;
+    }
+
+    @Override
+    public boolean subscribe(long subscriberId) {
+        return subscriberIds.add(subscriberId);
+    }
+
+    @Override
+    public boolean unsubscribe(long subscriberId) {
+        return subscriberIds.remove(subscriberId);
+    }
+
+    public int subscriberCount() {
+        return subscriberIds.size();
+    }
+
+    public void subscribeAll(long[] subscriberIds, int count) {
+        this.subscriberIds.addAll(subscriberIds, count);
+    }
+
+    @Override
+    public void notifySubscribers(String videoTitle) {
+        pool.invoke(fanOutTask(videoTitle));
+    }
+
+    public CompletableFuture<Void> uploadNewVideo(String videoTitle) {
+        System.out.println("Uploading: " + videoTitle + " to channel: " + channelName);
+        return CompletableFuture.runAsync(() -> fanOutTask(videoTitle).invoke(), pool);
+    }
+
+    private ChunkFanOutTask fanOutTask(String videoTitle) {
+        ChunkedIdStore.ChunkView view = subscriberIds.view();
+        return new ChunkFanOutTask(view, 0, view.size, directory,
+                                   subscriber -> subscriber.update(videoTitle));
+    }
+}
+
+// ===================== Subscriber registry snapshots =====================
+// Rebuilding a big channel with one subscribe() call per subscriber takes minutes. A snapshot
+// file is an append-only journal of subscribe/unsubscribe records: the writer appends as
+// subscriptions change, the loader memory-maps the file and bulk-builds the in-memory registry,
+// and compact() rewrites it down to the live records (through the writer while one is open, so no
+// append lands in the replaced file). A channel keeps its journal current through
+// journalSubscriptions(). A crash can leave a torn record at the end of the file; the loader stops
+// at the last complete record and the writer cuts the torn tail off before appending again.
+//
+// Layout: [int magic][short version] then records
+//   SUBSCRIBE:   [byte 1][long id][byte type][byte hasFilter]{3 x [byte n]{n x [short len][UTF-8]}}
+//   UNSUBSCRIBE: [byte 2][long id]
+// The three filter groups are categories, languages and keywords.
+
+enum SubscriberType {
+    EMAIL, MOBILE_APP
+}
+
+// Builds the delivery channel for a subscriber loaded from a snapshot
+interface SubscriberFactory {
+    Subscriber create(long subscriberId, SubscriberType type);
+}
+
+// The reverse of SubscriberFactory: what a live subscriber is recorded as in the journal
+interface SubscriberIdentity {
+    long idOf(Subscriber subscriber);
+    SubscriberType typeOf(Subscriber subscriber);
+}
+
+// One writer per file at a time; while it is open, the journal is compacted through it
+class SubscriberSnapshotWriter implements AutoCloseable {
+    private static final Set<Path> OPEN = ConcurrentHashMap.newKeySet();
+
+    private final Path file;
+    private DataOutputStream out; // guarded by this; replaced by compact()
+
+    public SubscriberSnapshotWriter(Path file) throws IOException {
+        this.file = file.toAbsolutePath().normalize();
+        if (!OPEN.add(this.file)) {
+            throw new IllegalStateException("A writer is already open on " + file);
+        }
+        try {
+            boolean fresh = !Files.exists(file) || Files.size(file) == 0;
+            if (!fresh) {
+                long complete = SubscriberSnapshot.completeLength(file);
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.truncate(complete); // appending after a torn record would corrupt everything behind it
+                }
+            }
+            this.out = open(file);
+            if (fresh) {
+                out.writeInt(SubscriberSnapshot.MAGIC);
+                out.writeShort(SubscriberSnapshot.VERSION);
+            }
+        } catch (IOException | RuntimeException e) {
+            OPEN.remove(this.file);
+            throw e;
+        }
+    }
+
+    static boolean isOpen(Path file) {
+        return OPEN.contains(file.toAbsolutePath().normalize());
+    }
+
+    boolean writesTo(Path other) {
+        return file.equals(other.toAbsolutePath().normalize());
+    }
+
+    // Rewrites the journal down to its live records and keeps appending to the new file.
+    // Appends wait on this writer meanwhile, so none can land in the file being replaced.
+    public synchronized void compact() throws IOException {
+        out.close();
+        try {
+            SubscriberSnapshot.rewrite(file);
+        } finally {
+            out = open(file);
+        }
+    }
+
+    private static DataOutputStream open(Path file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND), 1 << 16));
+    }
+
+    public synchronized void subscribed(long subscriberId, SubscriberType type, SubscriptionFilter filter)
+            throws IOException {
+        out.writeByte(SubscriberSnapshot.SUBSCRIBE);
+        out.writeLong(subscriberId);
+        out.writeByte(type.ordinal());
+        out.writeBoolean(filter != null);
+        if (filter != null) {
+            writeTerms(filter.categories());
+            writeTerms(filter.languages());
+            writeTerms(filter.keywords());
+        }
+    }
+
+    public synchronized void unsubscribed(long subscriberId) throws IOException {
+        out.writeByte(SubscriberSnapshot.UNSUBSCRIBE);
+        out.writeLong(subscriberId);
+    }
+
+    private void writeTerms(Set<String> terms) throws IOException {
+        if (terms.size() > 255) {
+            throw new IllegalArgumentException("A filter dimension can hold at most 255 terms");
+        }
+        out.writeByte(terms.size());
+        for (String term : terms) {
+            byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            OPEN.remove(file);
+        }
+    }
+}
+
+class SubscriberSnapshot {
+    static final int MAGIC = 0x53554253; // "SUBS"
+    static final short VERSION = 1;
+    static final byte SUBSCRIBE = 1;
+    static final byte UNSUBSCRIBE = 2;
+    private static final int HEADER_BYTES = Integer.BYTES + Short.BYTES;
+    private static final SubscriberType[] TYPES = SubscriberType.values();
+
+    @FunctionalInterface
+    interface RecordVisitor {
+        void visit(long subscriberId, SubscriberType type, SubscriptionFilter filter); // filter may be null
+    }
+
+    private SubscriberSnapshot() {
+    }
+
+    // Two sequential passes over the mapped file: the first finds the last SUBSCRIBE offset of every
+    // live ID (a later UNSUBSCRIBE cancels it), the second visits exactly those records in file order.
+    // The index grows with the live IDs, not with the file: a journal of churn stays cheap to load.
+    public static int forEachLive(Path file, RecordVisitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = map(channel, file);
+            LongIntIndex liveOffsets = new LongIntIndex();
+            int limit = buffer.limit();
+            int end = HEADER_BYTES;
+            while (end < limit) {
+                int next = recordEnd(buffer, end, limit, file);
+                if (next < 0) {
+                    break; // torn tail: everything from here on was never fully written
+                }
+                long id = buffer.getLong(end + 1);
+                if (buffer.get(end) == SUBSCRIBE) {
+                    liveOffsets.put(id, end);
+                } else {
+                    liveOffsets.remove(id);
+                }
+                end = next;
+            }
+            int live = 0;
+            for (int position = HEADER_BYTES; position < end; position = skip(buffer, position)) {
+                if (buffer.get(position) == SUBSCRIBE && liveOffsets.get(buffer.getLong(position + 1)) == position) {
+                    visit(buffer, position, visitor);
+                    live++;
+                }
+            }
+            return live;
+        }
+    }
+
+    // Length of the journal up to its last complete record
+    static long completeLength(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = map(channel, file);
+            int end = HEADER_BYTES;
+            for (int next; end < buffer.limit() && (next = recordEnd(buffer, end, buffer.limit(), file)) >= 0; ) {
+                end = next;
+            }
+            return end;
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, Path file) throws IOException {
+        long length = channel.size();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot " + file + " is larger than 2GB; compact it first");
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        if (length < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getShort(Integer.BYTES) != VERSION) {
+            throw new IOException("Not a subscriber snapshot: " + file);
+        }
+        return buffer;
+    }
+
+    // Offset just past the record at `position`, or -1 if it runs past `limit` (a torn write).
+    // An unknown op or type is corruption, not a torn tail.
+    private static int recordEnd(MappedByteBuffer buffer, int position, int limit, Path file) throws IOException {
+        byte op = buffer.get(position);
+        if (op != SUBSCRIBE && op != UNSUBSCRIBE) {
+            throw new IOException("Corrupt snapshot " + file + " at offset " + position);
+        }
+        int cursor = position + 1 + Long.BYTES;
+        if (op == UNSUBSCRIBE) {
+            return cursor <= limit ? cursor : -1;
+        }
+        if (cursor + 2 > limit) {
+            return -1;
+        }
+        if ((buffer.get(cursor) & 0xFF) >= TYPES.length) {
+            throw new IOException("Corrupt snapshot " + file + " at offset " + position);
+        }
+        cursor++;
+        boolean hasFilter = buffer.get(cursor++) != 0;
+        if (hasFilter) {
+            for (int group = 0; group < 3; group++) {
+                if (cursor >= limit) {
+                    return -1;
+                }
+                int terms = buffer.get(cursor++) & 0xFF;
+                for (int t = 0; t < terms; t++) {
+                    if (cursor + Short.BYTES > limit) {
+                        return -1;
+                    }
+                    cursor += Short.BYTES + (buffer.getShort(cursor) & 0xFFFF);
+                }
+            }
+        }
+        return cursor <= limit ? cursor : -1;
+    }
+
+    // Only called on records the first pass found complete
+    private static int skip(MappedByteBuffer buffer, int position) {
+        if (buffer.get(position) == UNSUBSCRIBE) {
+            return position + 1 + Long.BYTES;
+        }
+        int cursor = position + 1 + Long.BYTES + 1;
+        boolean hasFilter = buffer.get(cursor++) != 0;
+        if (hasFilter) {
+            for (int group = 0; group < 3; group++) {
+                int terms = buffer.get(cursor++) & 0xFF;
+                for (int t = 0; t < terms; t++) {
+                    cursor += Short.BYTES + (buffer.getShort(cursor) & 0xFFFF);
+                }
+            }
+        }
+        return cursor;
+    }
+
+    private static void visit(MappedByteBuffer buffer, int position, RecordVisitor visitor) {
+        long id = buffer.getLong(position + 1);
+        SubscriberType type = TYPES[buffer.get(position + 1 + Long.BYTES)];
+        int cursor = position + 1 + Long.BYTES + 1;
+        SubscriptionFilter filter = null;
+        if (buffer.get(cursor++) != 0) {
+            filter = new SubscriptionFilter();
+            for (int group = 0; group < 3; group++) {
+                int terms = buffer.get(cursor++) & 0xFF;
+                for (int t = 0; t < terms; t++) {
+                    int len = buffer.getShort(cursor) & 0xFFFF;
+                    byte[] bytes = new byte[len];
+                    buffer.get(cursor + Short.BYTES, bytes);
+                    cursor += Short.BYTES + len;
+                    String term = new String(bytes, StandardCharsets.UTF_8);
+                    switch (group) {
+                        case 0 -> filter.category(term);
+                        case 1 -> filter.language(term);
+                        default -> filter.keyword(term);
+                    }
+                }
+            }
+        }
+        visitor.visit(id, type, filter);
+    }
+
+    // Celebrity channels only need the IDs; they go into the chunked store in one bulk call
+    public static int loadInto(CelebrityYouTubeChannel channel, Path file) throws IOException {
+        long[][] ids = {new long[1 << 16]};
+        int[] count = {0};
+        forEachLive(file, (id, type, filter) -> {
+            if (count[0] == ids[0].length) {
+                ids[0] = Arrays.copyOf(ids[0], count[0] * 2);
+            }
+            ids[0][count[0]++] = id;
+        });
+        channel.subscribeAll(ids[0], count[0]);
+        return count[0];
+    }
+
+    // Regular channels: unfiltered subscribers are bulk-added to the registry, filtered ones are indexed
+    public static int loadInto(YouTubeChannel channel, Path file, SubscriberFactory factory) throws IOException {
+        List<Subscriber> unfiltered = new ArrayList<>();
+        Map<Subscriber, SubscriptionFilter> filtered = new LinkedHashMap<>();
+        int live = forEachLive(file, (id, type, filter) -> {
+            Subscriber subscriber = factory.create(id, type);
+            if (filter == null) {
+                unfiltered.add(subscriber);
+            } else {
+                filtered.put(subscriber, filter);
+            }
+        });
+        channel.restore(file, unfiltered, filtered);
+        return live;
+    }
+
+    // Rewrites a journal nobody is appending to; a live journal is compacted through its writer
+    public static void compact(Path file) throws IOException {
+        if (SubscriberSnapshotWriter.isOpen(file)) {
+            throw new IllegalStateException(file + " is open for writing; compact it with SubscriberSnapshotWriter.compact()");
+        }
+        rewrite(file);
+    }
+
+    // Rewrites the journal down to its live SUBSCRIBE records, then atomically swaps it in
+    static void rewrite(Path file) throws IOException {
+        Path compacted = file.resolveSibling(file.getFileName() + ".compacting");
+        Files.deleteIfExists(compacted);
+        try (SubscriberSnapshotWriter writer = new SubscriberSnapshotWriter(compacted)) {
+            forEachLive(file, (id, type, filter) -> {
+                try {
+                    writer.subscribed(id, type, filter);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
+
+
+public class ObserverPattern {
+    public static void main(String[] args) {
+        System.out.println("Observer Pattern Example");
+        YouTubeChannel omChannelSubject = new YouTubeChannel("OM Programming");
+        omChannelSubject.subscribe(new EmailSubscriber("subscriber1@example.com"));
+        omChannelSubject.subscribe(new MobileAppSubscriber("subscriber2"));
+        omChannelSubject.subscribe(new EmailSubscriber("subscriber3@example.com"));
+
+        omChannelSubject.uploadNewVideo("Observer Design Pattern in Java");
+
+        // same channel, but update() calls go out on virtual threads (at most 1000 at a time)
+        System.out.println();
+        try (VirtualThreadDispatcher dispatcher = new VirtualThreadDispatcher(1000)) {
+            YouTubeChannel asyncChannel = new YouTubeChannel("OM Programming Async", dispatcher);
+            asyncChannel.subscribe(new EmailSubscriber("subscriber1@example.com"));
+            asyncChannel.subscribe(new MobileAppSubscriber("subscriber2"));
+
+            CompletableFuture<Void> delivered = asyncChannel.uploadNewVideo("Virtual Threads in Java 21");
+            System.out.println("Upload returned, notifications still in flight");
+            delivered.join();
+        }
+
+        // celebrity channel: only IDs are stored, the directory builds the delivery channel at send time
+        System.out.println();
+        SubscriberDirectory directory = id -> id % 2 == 0
+                ? new EmailSubscriber("fan" + id + "@example.com")
+                : new MobileAppSubscriber("fan" + id);
+        CelebrityYouTubeChannel celebrity = new CelebrityYouTubeChannel("Celebrity Channel", directory);
+        for (long id = 1; id <= 4; id++) {
+            celebrity.subscribe(id);
+        }
+        celebrity.uploadNewVideo("Going live!").join();
+
+        // filtered subscriptions: only subscribers whose interests match are notified
+        System.out.println();
+        YouTubeChannel techChannel = new YouTubeChannel("OM Programming Topics");
+        techChannel.subscribe(new EmailSubscriber("java-fan@example.com"),
+                new SubscriptionFilter().category("Programming").keyword("java"));
+        techChannel.subscribe(new MobileAppSubscriber("hindi-viewer"), new SubscriptionFilter().language("hi"));
+        techChannel.uploadNewVideo(new VideoUpload("Java Streams Deep Dive", "programming", "en"));
+        techChannel.uploadNewVideo(new VideoUpload("DSA Series Part 1", "programming", "hi"));
+
+        // dedup: a re-posted upload does not notify the same subscribers twice
+        System.out.println();
+        YouTubeChannel crossPosting = new YouTubeChannel("OM Programming Clips");
+        Map<Subscriber, Long> crossPostingIds = Map.of(new EmailSubscriber("subscriber1@example.com"), 1L);
+        crossPosting.enableDeduplication(new DuplicateFilter(1_000_000, 0.01, 4, Duration.ofMinutes(15)),
+                                         crossPostingIds::get);
+        crossPosting.subscribe(new EmailSubscriber("subscriber1@example.com"));
+        crossPosting.uploadNewVideo("Observer Pattern in 60 Seconds");
+        crossPosting.uploadNewVideo("Observer Pattern in 60 Seconds"); // suppressed
+
+        // priority lanes: push gets most of the workers, email soaks up the backlog
+        System.out.println();
+        try (PriorityLaneDispatcher lanes = new PriorityLaneDispatcher(4, List.of(
+                new PriorityLaneDispatcher.LaneSpec("push", 8, 4, 1024, Duration.ofMillis(200), Set.of(MobileAppSubscriber.class)),
+                new PriorityLaneDispatcher.LaneSpec("email", 1, 2, 1024, Duration.ofMinutes(5), Set.of(EmailSubscriber.class))))) {
+            YouTubeChannel laneChannel = new YouTubeChannel("OM Programming Lanes", lanes);
+            laneChannel.subscribe(new EmailSubscriber("subscriber1@example.com"));
+            laneChannel.subscribe(new MobileAppSubscriber("subscriber2"));
+            laneChannel.uploadNewVideo("Weighted Fair Queuing").join();
+        }
+
+        // retries: the flaky subscriber is retried off a timing wheel, everyone else is unaffected
+        System.out.println();
+        ExecutorService retryExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        try (HashedTimingWheel wheel = new HashedTimingWheel(Duration.ofMillis(10), 512, retryExecutor)) {
+            RetryingDispatcher retrying = new RetryingDispatcher(new SequentialDispatcher(), wheel, 3,
+                    Duration.ofMillis(20), Duration.ofSeconds(1));
+            YouTubeChannel resilientChannel = new YouTubeChannel("OM Programming Resilient", retrying);
+            resilientChannel.subscribe(videoTitle -> {
+                throw new IllegalStateException("SMS gateway down");
+            });
+            resilientChannel.subscribe(new EmailSubscriber("subscriber1@example.com"));
+            resilientChannel.uploadNewVideo("Retries with Backoff").join();
+            while (retrying.pendingRetries() > 0 || retrying.deadLetters().isEmpty()) {
+                Thread.sleep(10);
+            }
+            System.out.println(retrying.deadLetters());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            retryExecutor.close();
+        }
+
+        // catch-up: an offline subscriber gets everything it missed as one digest on reconnect
+        System.out.println();
+        YouTubeChannel liveChannel = new YouTubeChannel("OM Programming Live");
+        liveChannel.enableCatchUp(new ChannelEventLog(1024, null));
+        MobileAppSubscriber commuter = new MobileAppSubscriber("commuter");
+        liveChannel.subscribe(commuter);
+        liveChannel.disconnect(commuter);
+        liveChannel.uploadNewVideo("Morning Stream");
+        liveChannel.uploadNewVideo("Lunch Q&A");
+        liveChannel.reconnect(commuter);
+
+        // snapshot: subscriptions are journaled as they change and bulk-loaded on the next start
+        System.out.println();
+        try {
+            Path snapshotDirectory = Files.createTempDirectory("subscribers");
+            Path snapshotFile = snapshotDirectory.resolve("om-programming.subs");
+            Map<Subscriber, Long> ids = Map.of(new EmailSubscriber("user1@example.com"), 1L,
+                                               new MobileAppSubscriber("user2"), 2L,
+                                               new EmailSubscriber("user3@example.com"), 3L);
+            SubscriberIdentity identity = new SubscriberIdentity() {
+                @Override
+                public long idOf(Subscriber subscriber) {
+                    return ids.get(subscriber);
+                }
+
+                @Override
+                public SubscriberType typeOf(Subscriber subscriber) {
+                    return subscriber instanceof EmailSubscriber ? SubscriberType.EMAIL : SubscriberType.MOBILE_APP;
+                }
+            };
+            try (SubscriberSnapshotWriter journal = new SubscriberSnapshotWriter(snapshotFile)) {
+                YouTubeChannel journaled = new YouTubeChannel("OM Programming");
+                journaled.journalSubscriptions(journal, identity);
+                journaled.subscribe(new EmailSubscriber("user1@example.com"));
+                journaled.subscribe(new MobileAppSubscriber("user2"), new SubscriptionFilter().keyword("java"));
+                journaled.subscribe(new EmailSubscriber("user3@example.com"));
+                journaled.unsubscribe(new EmailSubscriber("user3@example.com"));
+            }
+            YouTubeChannel restored = new YouTubeChannel("OM Programming Restored");
+            int loaded = SubscriberSnapshot.loadInto(restored, snapshotFile, (id, type) -> type == SubscriberType.EMAIL
+                    ? new EmailSubscriber("user" + id + "@example.com")
+                    : new MobileAppSubscriber("user" + id));
+            System.out.println("Loaded " + loaded + " subscribers from snapshot");
+            restored.uploadNewVideo("Java Records Explained");
+            deleteRecursively(snapshotDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // durable outbox: every upload is on disk before fan-out, cursors say how far each shard got
+        System.out.println();
+        try {
+            Path outboxDirectory = Files.createTempDirectory("outbox");
+            try (NotificationOutbox outbox = new NotificationOutbox(outboxDirectory, 4, 1 << 20)) {
+                YouTubeChannel durableChannel = new YouTubeChannel("OM Programming Durable");
+                durableChannel.subscribe(new EmailSubscriber("subscriber1@example.com"));
+                durableChannel.subscribe(new MobileAppSubscriber("subscriber2"));
+                durableChannel.attachOutbox(outbox);
+                durableChannel.recoverFromOutbox(); // nothing to resume on a fresh outbox
+                durableChannel.uploadNewVideo("Write-Ahead Logs").join();
+                System.out.println("Shard cursors: " + Arrays.toString(outbox.cursors()));
+            } finally {
+                deleteRecursively(outboxDirectory);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // mailboxes: a slow push provider only fills its own queue, email and the uploader carry on
+        System.out.println();
+        MailboxPolicies policies = new MailboxPolicies(1000, OverflowPolicy.BLOCK)
+                .configure(MobileAppSubscriber.class, 16, OverflowPolicy.COALESCE_LATEST);
+        MailboxSubscriber email = policies.wrap(new EmailSubscriber("subscriber1@example.com"));
+        MailboxSubscriber push = policies.wrap(new MobileAppSubscriber("subscriber2"));
+        YouTubeChannel mailboxChannel = new YouTubeChannel("OM Programming Mailboxes");
+        mailboxChannel.subscribe(email);
+        mailboxChannel.subscribe(push);
+        mailboxChannel.uploadNewVideo("Backpressure Explained");
+        email.close();
+        push.close();
+        System.out.println(email);
+        System.out.println(push);
+
+        // digest batching: three uploads in a burst become one update per subscriber
+        System.out.println();
+        YouTubeChannel burstyChannel = new YouTubeChannel("OM Programming Shorts");
+        burstyChannel.subscribe(new EmailSubscriber("subscriber1@example.com"));
+        burstyChannel.subscribe(new MobileAppSubscriber("subscriber2"));
+        burstyChannel.enableDigestBatching(Duration.ofSeconds(60), 3);
+        burstyChannel.uploadNewVideo("Short #1");
+        burstyChannel.uploadNewVideo("Short #2");
+        burstyChannel.uploadNewVideo("Short #3").join();
+        burstyChannel.disableDigestBatching();
+    }
+
+    // Demo scratch directories are removed again, files first
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
+
+// ===================== Benchmark suite =====================
+/*
+Measures the YouTubeChannel dispatch paths from ObserverPattern.java so that changes to the
+notify path can be compared run over run.
+
+Scenarios
+- churn:      subscribe + unsubscribe pairs against a registry that already holds N subscribers
+- fanout:     one upload to N mixed subscribers (half email-like, half push-like), per dispatcher
+- celebrity:  one upload to N subscriber IDs through CelebrityYouTubeChannel's fork-join fan-out
+
+Every scenario reports mean and standard deviation over the measured iterations, operations per
+second (an operation is one subscribe + unsubscribe pair for churn and one upload otherwise), plus
+bytes allocated per notification (all threads, via com.sun.management.ThreadMXBean), which plays the
+role of JMH's GC profiler. Results are appended to a CSV file; pass --baseline to compare
+against an earlier run and flag regressions.
+
+The suite lives in this file because its scenarios use the package-private classes above.
+Compile and run from this folder (the default sizes go up to 10M subscribers, which needs a large heap):
+    javac -d out ObserverPattern.java
+    java -Xmx8g -cp out ObserverBenchmark --out bench-results.csv
+    java -Xmx8g -cp out ObserverBenchmark --sizes 1000,100000 --baseline bench-results.csv --out bench-results-new.csv
+*/
+
+// Silent subscribers: the benchmark measures dispatch, not System.out
+class BenchEmailSubscriber implements Subscriber {
+    static final LongAdder DELIVERED = new LongAdder();
+
+    @Override
+    public void update(String videoTitle) {
+        DELIVERED.increment();
+    }
+}
+
+class BenchPushSubscriber implements Subscriber {
+    static final LongAdder DELIVERED = new LongAdder();
+
+    @Override
+    public void update(String videoTitle) {
+        DELIVERED.increment();
+    }
+}
+
+// One measured result row
+class BenchResult {
+    final String scenario;
+    final String strategy;
+    final int subscribers;
+    final double meanMillis;
+    final double stdDevMillis;
+    final double opsPerSecond;
+    final double bytesPerNotification;
+
+    BenchResult(String scenario, String strategy, int subscribers, double meanMillis, double stdDevMillis,
+                double opsPerSecond, double bytesPerNotification) {
+        this.scenario = scenario;
+        this.strategy = strategy;
+        this.subscribers = subscribers;
+        this.meanMillis = meanMillis;
+        this.stdDevMillis = stdDevMillis;
+        this.opsPerSecond = opsPerSecond;
+        this.bytesPerNotification = bytesPerNotification;
+    }
+
+    String key() {
+        return scenario + "/" + strategy + "/" + subscribers;
+    }
+
+    static String csvHeader() {
+        return "scenario,strategy,subscribers,mean_ms,stddev_ms,ops_per_sec,bytes_per_notification";
+    }
+
+    String toCsv() {
+        // Locale.ROOT: a locale with a decimal comma would split every number into two columns
+        return String.format(Locale.ROOT, "%s,%s,%d,%.4f,%.4f,%.1f,%.2f",
+                scenario, strategy, subscribers, meanMillis, stdDevMillis, opsPerSecond, bytesPerNotification);
+    }
+
+    static BenchResult fromCsv(String line) {
+        String[] f = line.split(",");
+        return new BenchResult(f[0], f[1], Integer.parseInt(f[2]), Double.parseDouble(f[3]),
+                Double.parseDouble(f[4]), Double.parseDouble(f[5]), Double.parseDouble(f[6]));
+    }
+}
+
+class ObserverBenchmark {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private int warmupIterations = 3;
+    private int measuredIterations = 5;
+    private double regressionThresholdPercent = 10;
+
+    public static void main(String[] args) throws Exception {
+        ObserverBenchmark bench = new ObserverBenchmark();
+        List<Integer> sizes = List.of(1_000, 100_000, 10_000_000);
+        Path out = Path.of("bench-results.csv");
+        Path baseline = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--sizes" -> sizes = parseSizes(args[++i]);
+                case "--out" -> out = Path.of(args[++i]);
+                case "--baseline" -> baseline = Path.of(args[++i]);
+                case "--warmup" -> bench.warmupIterations = Integer.parseInt(args[++i]);
+                case "--iterations" -> bench.measuredIterations = Integer.parseInt(args[++i]);
+                case "--threshold" -> bench.regressionThresholdPercent = Double.parseDouble(args[++i]);
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        List<BenchResult> results = new ArrayList<>();
+        for (int size : sizes) {
+            results.add(bench.churn(size));
+            results.add(bench.fanOut("sequential", size, SequentialDispatcher::new));
+            results.add(bench.fanOut("virtual-threads", size, () -> new VirtualThreadDispatcher(1024)));
+            results.add(bench.fanOut("priority-lanes", size, () -> new PriorityLaneDispatcher(
+                    Runtime.getRuntime().availableProcessors(), List.of(
+                    new PriorityLaneDispatcher.LaneSpec("push", 8, 64, 65_536, Duration.ofMillis(200),
+                            Set.of(BenchPushSubscriber.class)),
+                    new PriorityLaneDispatcher.LaneSpec("email", 1, 64, 65_536, Duration.ofMinutes(5), Set.of())))));
+            results.add(bench.celebrity(size));
+        }
+
+        System.out.println(BenchResult.csvHeader());
+        results.forEach(result -> System.out.println(result.toCsv()));
+        bench.write(out, results);
+        if (baseline != null) {
+            bench.compare(baseline, results);
+        }
+    }
+
+    // subscribe + unsubscribe pairs on top of `size` resident subscribers
+    BenchResult churn(int size) {
+        YouTubeChannel channel = new YouTubeChannel("bench-churn");
+        List<Subscriber> resident = mixedSubscribers(size);
+        channel.subscribeAll(resident);
+        int pairs = 100_000;
+        List<Subscriber> churners = mixedSubscribers(pairs);
+        return measure("churn", "slot-registry", size, pairs, pairs, () -> {
+            for (Subscriber subscriber : churners) {
+                channel.subscribe(subscriber);
+            }
+            for (Subscriber subscriber : churners) {
+                channel.unsubscribe(subscriber);
+            }
+        });
+    }
+
+    // one upload to `size` mixed subscribers, timed until the completion handle is done (publish,
+    // not uploadNewVideo, so the console line stays out of the measurement)
+    BenchResult fanOut(String strategy, int size, Supplier<NotificationDispatcher> dispatchers) throws Exception {
+        NotificationDispatcher dispatcher = dispatchers.get();
+        try {
+            YouTubeChannel channel = new YouTubeChannel("bench-fanout", dispatcher);
+            channel.subscribeAll(mixedSubscribers(size));
+            VideoUpload upload = VideoUpload.of("bench");
+            return measure("fanout", strategy, size, 1, size, () -> channel.publish(upload).join());
+        } finally {
+            if (dispatcher instanceof AutoCloseable closeable) {
+                closeable.close();
+            }
+        }
+    }
+
+    // one upload to `size` subscriber IDs, resolved at send time
+    BenchResult celebrity(int size) {
+        Subscriber email = new BenchEmailSubscriber();
+        Subscriber push = new BenchPushSubscriber();
+        CelebrityYouTubeChannel channel = new CelebrityYouTubeChannel("bench-celebrity",
+                id -> (id & 1) == 0 ? email : push);
+        long[] ids = new long[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = i;
+        }
+        channel.subscribeAll(ids, size);
+        return measure("celebrity", "fork-join-chunks", size, 1, size, () -> channel.notifySubscribers("bench"));
+    }
+
+    // `run` performs opsPerRun operations that deliver notificationsPerRun notifications in total
+    private BenchResult measure(String scenario, String strategy, int subscribers, long opsPerRun,
+                                long notificationsPerRun, Runnable run) {
+        for (int i = 0; i < warmupIterations; i++) {
+            run.run();
+        }
+        double[] millis = new double[measuredIterations];
+        long allocatedBefore = THREADS.getTotalThreadAllocatedBytes();
+        for (int i = 0; i < measuredIterations; i++) {
+            long start = System.nanoTime();
+            run.run();
+            millis[i] = (System.nanoTime() - start) / 1e6;
+        }
+        long allocated = THREADS.getTotalThreadAllocatedBytes() - allocatedBefore;
+
+        double mean = 0;
+        for (double m : millis) {
+            mean += m;
+        }
+        mean /= millis.length;
+        double variance = 0;
+        for (double m : millis) {
+            variance += (m - mean) * (m - mean);
+        }
+        double stdDev = Math.sqrt(variance / millis.length);
+        double bytesPerNotification = (double) allocated / ((long) measuredIterations * notificationsPerRun);
+        return new BenchResult(scenario, strategy, subscribers, mean, stdDev, opsPerRun * 1000.0 / mean,
+                bytesPerNotification);
+    }
+
+    private void write(Path out, List<BenchResult> results) throws IOException {
+        boolean fresh = !Files.exists(out);
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(out,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+            if (fresh) {
+                writer.println(BenchResult.csvHeader());
+            }
+            results.forEach(result -> writer.println(result.toCsv()));
+        }
+    }
+
+    // Compares against the last row for each key in the baseline file
+    private void compare(Path baselineFile, List<BenchResult> results) throws IOException {
+        Map<String, BenchResult> baseline = new HashMap<>();
+        for (String line : Files.readAllLines(baselineFile)) {
+            if (!line.isBlank() && !line.startsWith("scenario,")) {
+                BenchResult row = BenchResult.fromCsv(line);
+                baseline.put(row.key(), row);
+            }
+        }
+        System.out.println();
+        System.out.println("Comparison against " + baselineFile + " (threshold " + regressionThresholdPercent + "%)");
+        int regressions = 0;
+        for (BenchResult result : results) {
+            BenchResult before = baseline.get(result.key());
+            if (before == null) {
+                continue;
+            }
+            double timeDelta = (result.meanMillis - before.meanMillis) / before.meanMillis * 100;
+            double allocDelta = before.bytesPerNotification == 0 ? 0
+                    : (result.bytesPerNotification - before.bytesPerNotification) / before.bytesPerNotification * 100;
+            boolean regressed = timeDelta > regressionThresholdPercent || allocDelta > regressionThresholdPercent;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.printf("%-45s time %+7.1f%%  alloc %+7.1f%%%s%n",
+                    result.key(), timeDelta, allocDelta, regressed ? "  <-- REGRESSION" : "");
+        }
+        System.out.println(regressions == 0 ? "No regressions" : regressions + " regression(s)");
+    }
+
+    private static List<Subscriber> mixedSubscribers(int count) {
+        List<Subscriber> subscribers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            subscribers.add((i & 1) == 0 ? new BenchEmailSubscriber() : new BenchPushSubscriber());
+        }
+        return subscribers;
+    }
+
+    private static List<Integer> parseSizes(String csv) {
+        List<Integer> sizes = new ArrayList<>();
+        for (String size : csv.split(",")) {
+            sizes.add(Integer.parseInt(size.trim()));
+        }
+        return sizes;
     }
 }